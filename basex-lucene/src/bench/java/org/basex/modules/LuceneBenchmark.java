@@ -0,0 +1,421 @@
+package org.basex.modules;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.basex.core.*;
+import org.basex.core.cmd.*;
+import org.basex.data.*;
+import org.basex.io.*;
+import org.basex.util.*;
+
+/**
+ * Benchmarks for building and querying Lucene indexes. A synthetic database
+ * is created in an embedded context; then the build throughput, the search
+ * latency and throughput at different hit counts, and the costs of
+ * drill-downs and facets are measured, along with the memory allocated per
+ * operation by the calling thread (allocations of build workers are not
+ * included). The result cache is disabled unless {@code cache=true} is
+ * specified.
+ *
+ * Options are passed as {@code key=value} arguments:
+ * {@code docs} (number of records, default: 10000),
+ * {@code depth} (levels of sections above the records, default: 3),
+ * {@code fanout} (sections per level, default: 4),
+ * {@code warmup} (unmeasured runs, default: 5),
+ * {@code runs} (measured runs, default: 20),
+ * {@code builds} (measured index builds, default: 3),
+ * {@code clients} (concurrent clients for the throughput test, default: 4),
+ * {@code seed} (random seed, default: 42),
+ * {@code path} (database directory, default: temporary directory),
+ * {@code cache} (enables the result cache, default: false).
+ *
+ * The benchmark is kept in its own source root ({@code src/bench/java}), so
+ * that it is not packaged with the module. It shares the package of the
+ * module and is compiled against its classes. After the module has been
+ * compiled to {@code target/classes}, it is compiled and run from the
+ * project directory with:
+ *
+ * <pre>
+ * javac -d target/bench -cp "target/classes:lib/*" src/bench/java/org/basex/modules/*.java
+ * java -cp "target/bench:target/classes:lib/*" org.basex.modules.LuceneBenchmark docs=1000
+ * </pre>
+ *
+ * @author Stephan
+ *
+ */
+public final class LuceneBenchmark {
+  /**
+   * Name of the benchmark database.
+   */
+  private static final String DB = "lucenebench";
+  /**
+   * Queries with different hit counts.
+   */
+  private static final String[] QUERIES = { "rare", "medium", "common", "w1 OR w2 OR w3" };
+
+  /**
+   * Number of records.
+   */
+  private int docs = 10000;
+  /**
+   * Levels of sections above the records.
+   */
+  private int depth = 3;
+  /**
+   * Sections per level.
+   */
+  private int fanout = 4;
+  /**
+   * Unmeasured runs.
+   */
+  private int warmup = 5;
+  /**
+   * Measured runs.
+   */
+  private int runs = 20;
+  /**
+   * Measured index builds.
+   */
+  private int builds = 3;
+  /**
+   * Concurrent clients.
+   */
+  private int clients = 4;
+  /**
+   * Random seed.
+   */
+  private long seed = 42;
+  /**
+   * Database directory ({@code null}: temporary directory).
+   */
+  private String path;
+
+  /**
+   * Database context.
+   */
+  private Context context;
+  /**
+   * Database data.
+   */
+  private Data data;
+
+  /**
+   * Main method.
+   * @param args options ({@code key=value})
+   * @throws Exception exception
+   */
+  public static void main(final String... args) throws Exception {
+    final LuceneBenchmark bench = new LuceneBenchmark();
+    boolean cache = false;
+    for(final String arg : args) {
+      final int i = arg.indexOf('=');
+      if(i == -1) throw new IllegalArgumentException("key=value expected: " + arg);
+      final String key = arg.substring(0, i), value = arg.substring(i + 1);
+      switch(key) {
+        case "docs": bench.docs = Integer.parseInt(value); break;
+        case "depth": bench.depth = Integer.parseInt(value); break;
+        case "fanout": bench.fanout = Math.max(1, Integer.parseInt(value)); break;
+        case "warmup": bench.warmup = Integer.parseInt(value); break;
+        case "runs": bench.runs = Math.max(1, Integer.parseInt(value)); break;
+        case "builds": bench.builds = Math.max(1, Integer.parseInt(value)); break;
+        case "clients": bench.clients = Math.max(1, Integer.parseInt(value)); break;
+        case "seed": bench.seed = Long.parseLong(value); break;
+        case "path": bench.path = value; break;
+        case "cache": cache = Boolean.parseBoolean(value); break;
+        default: throw new IllegalArgumentException("Unknown option: " + key);
+      }
+    }
+    // must be set before the cache is initialized
+    if(!cache) System.setProperty("lucene.cache.memory", "0");
+    bench.run();
+  }
+
+  /**
+   * Runs all benchmarks.
+   * @throws Exception exception
+   */
+  private void run() throws Exception {
+    final IOFile dir = new IOFile(path != null ? path :
+      System.getProperty("java.io.tmpdir") + "/lucenebench-" + System.nanoTime());
+    context = new Context();
+    context.globalopts.set(GlobalOptions.DBPATH, dir.path());
+    try {
+      Util.outln("Lucene benchmark: % records, depth %, fanout %, % runs", docs, depth,
+          fanout, runs);
+      final Performance perf = new Performance();
+      new CreateDB(DB, xml()).execute(context);
+      data = context.data();
+      Util.outln("Database: % nodes created in %", data.meta.size, perf);
+      Util.outln("");
+      Util.outln(String.format("%-36s %10s %10s %10s %10s %12s", "Benchmark", "Hits",
+          "Mean ms", "P50 ms", "P99 ms", "KB/op"));
+
+      // index with one document per text node
+      final LuceneOptions options = new LuceneOptions();
+      options.progress = 0;
+      build("build: text nodes", new Op() {
+        @Override
+        long run() throws Exception {
+          LuceneIndex.luceneIndex(data, options);
+          return -1;
+        }
+      });
+      searches("text");
+      facets("text", new String[] { "text", "root", "section" });
+
+      // schema-based index with one document per record
+      build("build: schema (record)", new Op() {
+        @Override
+        long run() throws Exception {
+          LuceneIndex.luceneIndexSchema(data, "record");
+          return -1;
+        }
+      });
+      searches("schema");
+      facets("schema", new String[] { "category", "C1", "C1.2" });
+      throughput("schema");
+    } finally {
+      LuceneReaders.close(data);
+      new DropDB(DB).execute(context);
+      context.close();
+      if(path == null) dir.delete();
+    }
+  }
+
+  /**
+   * Measures the build of an index.
+   * @param name name of the benchmark
+   * @param op build operation
+   * @throws Exception exception
+   */
+  private void build(final String name, final Op op) throws Exception {
+    final long[] times = new long[builds];
+    final long alloc = allocated();
+    for(int b = 0; b < builds; b++) {
+      final long start = System.nanoTime();
+      op.run();
+      times[b] = System.nanoTime() - start;
+    }
+    report(name, -1, times, (allocated() - alloc) / builds);
+  }
+
+  /**
+   * Measures searches with different hit counts.
+   * @param index type of the index
+   * @throws Exception exception
+   */
+  private void searches(final String index) throws Exception {
+    for(final String query : QUERIES) {
+      final LuceneIndex session = new LuceneIndex();
+      session.query(query, data);
+      measure(index + ": search '" + query + "'", new Op() {
+        @Override
+        long run() throws Exception {
+          return session.getResults(false).length;
+        }
+      });
+      measure(index + ": first 10 '" + query + "'", new Op() {
+        @Override
+        long run() throws Exception {
+          return session.getResults(0, 10).length;
+        }
+      });
+    }
+  }
+
+  /**
+   * Measures drill-downs and facets.
+   * @param index type of the index
+   * @param drill dimension and path of the drill-down
+   * @throws Exception exception
+   */
+  private void facets(final String index, final String[] drill) throws Exception {
+    final LuceneIndex session = new LuceneIndex();
+    session.query("medium", data);
+    measure(index + ": search+facets 'medium'", new Op() {
+      @Override
+      long run() throws Exception {
+        return session.getResults(true).length;
+      }
+    });
+
+    final String[] path = Arrays.copyOfRange(drill, 1, drill.length);
+    measure(index + ": drill-down " + Arrays.toString(drill), new Op() {
+      @Override
+      long run() throws Exception {
+        final LuceneIndex dd = new LuceneIndex();
+        dd.query("medium", data);
+        dd.drilldown(drill[0], path);
+        return dd.getResults(false).length;
+      }
+    });
+
+    final LuceneFacetOptions fopts = new LuceneFacetOptions();
+    measure(index + ": all facets", new Op() {
+      @Override
+      long run() throws Exception {
+        return LuceneIndex.facet(data, fopts).size();
+      }
+    });
+  }
+
+  /**
+   * Measures the search throughput of concurrent clients.
+   * @param index type of the index
+   * @throws Exception exception
+   */
+  private void throughput(final String index) throws Exception {
+    final ExecutorService pool = Executors.newFixedThreadPool(clients);
+    try {
+      final ArrayList<Callable<Long>> tasks = new ArrayList<>();
+      for(int c = 0; c < clients; c++) {
+        final String query = QUERIES[c % QUERIES.length];
+        tasks.add(new Callable<Long>() {
+          @Override
+          public Long call() throws Exception {
+            final LuceneIndex session = new LuceneIndex();
+            session.query(query, data);
+            long hits = 0;
+            for(int r = 0; r < runs; r++) hits += session.getResults(0, 10).length;
+            return hits;
+          }
+        });
+      }
+      pool.invokeAll(tasks);
+
+      final long start = System.nanoTime();
+      for(final Future<Long> future : pool.invokeAll(tasks)) future.get();
+      final double secs = (System.nanoTime() - start) / 1e9;
+      Util.outln(String.format("%-36s %10.0f ops/s", index + ": " + clients + " clients",
+          clients * runs / secs));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Runs an operation and prints its statistics.
+   * @param name name of the benchmark
+   * @param op operation
+   * @throws Exception exception
+   */
+  private void measure(final String name, final Op op) throws Exception {
+    for(int w = 0; w < warmup; w++) op.run();
+
+    final long[] times = new long[runs];
+    final long alloc = allocated();
+    long hits = 0;
+    for(int r = 0; r < runs; r++) {
+      final long start = System.nanoTime();
+      hits = op.run();
+      times[r] = System.nanoTime() - start;
+    }
+    report(name, hits, times, (allocated() - alloc) / runs);
+  }
+
+  /**
+   * Prints the statistics of a benchmark.
+   * @param name name of the benchmark
+   * @param hits number of hits ({@code -1}: none)
+   * @param times measured times (ns)
+   * @param alloc allocated bytes per operation ({@code -1}: unknown)
+   */
+  private static void report(final String name, final long hits, final long[] times,
+      final long alloc) {
+    Arrays.sort(times);
+    long sum = 0;
+    for(final long t : times) sum += t;
+    final int n = times.length;
+    Util.outln(String.format("%-36s %10s %10.3f %10.3f %10.3f %12s", name,
+        hits < 0 ? "" : Long.toString(hits), sum / 1e6 / n, times[n / 2] / 1e6,
+        times[Math.min(n - 1, n * 99 / 100)] / 1e6, alloc < 0 ? "?" : Long.toString(alloc >> 10)));
+  }
+
+  /**
+   * Returns the number of bytes allocated by the current thread.
+   * @return allocated bytes, or {@code -1} if not supported by the JVM
+   */
+  private static long allocated() {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if(bean instanceof com.sun.management.ThreadMXBean) {
+      final com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+      if(sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+        return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Generates the synthetic database. The records are distributed over
+   * nested sections. Each record contains the term {@code common}; every tenth
+   * record contains {@code medium}, and every thousandth contains {@code rare}.
+   * @return XML document
+   */
+  private String xml() {
+    final Random rnd = new Random(seed);
+    final StringBuilder sb = new StringBuilder("<root>");
+    sections(sb, rnd, 0, 0, docs);
+    return sb.append("</root>").toString();
+  }
+
+  /**
+   * Generates the records in the given range, nested in sections.
+   * @param sb string builder
+   * @param rnd random generator
+   * @param level current level
+   * @param start index of the first record
+   * @param end index after the last record
+   */
+  private void sections(final StringBuilder sb, final Random rnd, final int level,
+      final int start, final int end) {
+    if(level == depth) {
+      for(int r = start; r < end; r++) record(sb, rnd, r);
+      return;
+    }
+    final int count = end - start;
+    for(int f = 0; f < fanout; f++) {
+      final int s = start + (int) ((long) count * f / fanout);
+      final int e = start + (int) ((long) count * (f + 1) / fanout);
+      if(s == e) continue;
+      sb.append("<section level=\"").append(level).append("\" n=\"").append(f).append("\">");
+      sections(sb, rnd, level + 1, s, e);
+      sb.append("</section>");
+    }
+  }
+
+  /**
+   * Generates a record.
+   * @param sb string builder
+   * @param rnd random generator
+   * @param r index of the record
+   */
+  private static void record(final StringBuilder sb, final Random rnd, final int r) {
+    final int c1 = rnd.nextInt(8), c2 = rnd.nextInt(8);
+    sb.append("<record id=\"").append(r).append("\"><title>common");
+    if(r % 10 == 0) sb.append(" medium");
+    if(r % 1000 == 0) sb.append(" rare");
+    // word frequencies follow a skewed distribution
+    for(int w = 0; w < 8; w++) {
+      sb.append(" w").append((int) Math.pow(1000, rnd.nextDouble()));
+    }
+    sb.append("</title><author>Author ").append(rnd.nextInt(100)).append("</author>");
+    sb.append("<year>").append(1950 + rnd.nextInt(70)).append("</year>");
+    sb.append("<category><main>C").append(c1).append("</main><sub>C").append(c1).append('.').
+      append(c2).append("</sub></category></record>");
+  }
+
+  /**
+   * Benchmarked operation.
+   */
+  private abstract static class Op {
+    /**
+     * Runs the operation.
+     * @return number of hits ({@code -1}: none)
+     * @throws Exception exception
+     */
+    abstract long run() throws Exception;
+  }
+}
@@ -1,19 +1,17 @@
 package org.basex.modules;
 
 import java.io.*;
-import java.math.*;
 import java.util.*;
 
-import org.apache.lucene.analysis.standard.*;
-import org.apache.lucene.index.*;
-import org.apache.lucene.store.*;
-import org.apache.lucene.util.Version;
 import org.basex.data.*;
-import org.basex.io.*;
 import org.basex.query.*;
+import org.basex.query.iter.*;
 import org.basex.query.value.*;
 import org.basex.query.value.item.*;
+import org.basex.query.value.map.Map;
 import org.basex.query.value.node.*;
+import org.basex.query.value.seq.*;
+import org.basex.util.list.*;
 
 /**
  * This module evaluates the lucene:search() command.
@@ -22,16 +20,35 @@ import org.basex.query.value.node.*;
  *
  */
 public class Lucene extends QueryModule{
-
+  static {
+    // warm up the configured databases when the module is loaded
+    LuceneWarmup.start();
+  }
 
   /**
    * Creates new Query Instance with next ID.
    * @return ID
    */
   public Int connect() {
-    int id = LuceneIndex.getID();
-    new LuceneIndex(id);
-    return Int.get(id);
+    return Int.get(LuceneSessions.open());
+  }
+
+  /**
+   * Closes the Query Instance with the given ID and frees its results.
+   * @param id Query id
+   * @return {@code true} if the instance existed
+   */
+  public boolean close(final Int id) {
+    return LuceneSessions.close((int) id.itr());
+  }
+
+  /**
+   * Returns the number of open Query Instances and their estimated memory.
+   * @return sessions element
+   */
+  public FElem sessions() {
+    return new FElem("sessions").add("count", Integer.toString(LuceneSessions.size())).
+        add("memory", Long.toString(LuceneSessions.memory()));
   }
   
   /**
@@ -44,12 +61,106 @@ public class Lucene extends QueryModule{
    */
   public void luceneIndex(final String name, final String mainEle) throws Exception{
 	 Data data = queryContext.resources.database(name, null);
-	 LuceneIndex.luceneIndexSchema(queryContext.context, data, name, mainEle);
+	 LuceneIndex.luceneIndexSchema(data, mainEle);
+  }
+
+  /**
+   * Creates Lucene Index of the given Database with the given
+   * index format ({@code format}: {@code full} or {@code slim}),
+   * field-mapping rules ({@code fields}: a map from element names, absolute
+   * element paths or {@code *} to field names), which index the texts of the
+   * matching elements in fields that can be searched directly
+   * (e.g. {@code map{'fields': map{'title': 'title'}}} and {@code title:lucene}),
+   * and the build options of {@link #index(String, Map)}. By default, the
+   * documents are added in a single thread and the index is merged to five
+   * segments.
+   * @param name Database name
+   * @param mainEle Main elements
+   * @param options Build options
+   * @throws Exception Exception
+   */
+  public void luceneIndex(final String name, final String mainEle, final Map options)
+      throws Exception {
+    Data data = queryContext.resources.database(name, null);
+    LuceneIndex.luceneIndexSchema(data, mainEle, LuceneIndex.schemaOptions().set(options));
+  }
+
+  /**
+   * Creates Lucene Index of the given Database with one Document
+   * per text node.
+   * @param name Database name
+   * @throws QueryException Query exception
+   * @throws IOException I/O exception
+   */
+  public void index(final String name) throws QueryException, IOException {
+    Data data = queryContext.resources.database(name, null);
+    LuceneIndex.luceneIndex(data, new LuceneOptions());
+  }
+
+  /**
+   * Creates Lucene Index of the given Database with one Document
+   * per text node, using the given build options
+   * ({@code threads}, {@code ram}, {@code segments}, {@code segmentsize},
+   * {@code mergethreads}, {@code mergecount}, {@code mergerate},
+   * {@code merge}, {@code progress}, {@code format}). Field-mapping rules
+   * are only supported by schema-based indexes.
+   * @param name Database name
+   * @param options Build options
+   * @throws QueryException Query exception
+   * @throws IOException I/O exception
+   */
+  public void index(final String name, final Map options) throws QueryException, IOException {
+    LuceneOptions.supported(options, "threads", "ram", "segments", "segmentsize",
+        "mergethreads", "mergecount", "mergerate", "merge", "progress", "format");
+    Data data = queryContext.resources.database(name, null);
+    LuceneIndex.luceneIndex(data, new LuceneOptions(options));
+  }
+
+  /**
+   * Updates the Lucene Index after the given nodes have been inserted or
+   * changed. Only the Documents containing these nodes are created again.
+   * If nodes have been deleted, their parents must be specified.
+   * As updates are applied at the end of a query, this function
+   * must be called by a subsequent query.
+   * @param nodes Changed database nodes
+   * @throws QueryException Query exception
+   * @throws IOException I/O exception
+   */
+  public void update(final Value nodes) throws QueryException, IOException {
+    HashMap<Data, IntList> pres = new HashMap<>();
+    for(Item item : nodes) {
+      if(!(item instanceof DBNode)) throw new QueryException("Database node expected: " + item);
+      DBNode node = (DBNode) item;
+      IntList list = pres.get(node.data);
+      if(list == null) {
+        list = new IntList();
+        pres.put(node.data, list);
+      }
+      list.add(node.pre);
+    }
+    for(java.util.Map.Entry<Data, IntList> entry : pres.entrySet()) {
+      LuceneIndex.update(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Removes deleted nodes and their descendants from the Lucene Index.
+   * @param name Database name
+   * @param ids Ids of the deleted nodes
+   * @throws QueryException Query exception
+   * @throws IOException I/O exception
+   */
+  public void delete(final String name, final Value ids) throws QueryException, IOException {
+    Data data = queryContext.resources.database(name, null);
+    IntList list = new IntList();
+    for(Item item : ids) list.add((int) item.itr(null));
+    LuceneIndex.delete(data, list);
   }
 
   /**
    * Queries the given input String and returns
-   * a collection of all found ANodes.
+   * a collection of all found ANodes. The Query may address the fields
+   * of the field-mapping rules of the Index (e.g. {@code title:lucene}).
    * @param id Query id
    * @param query Query
    * @param name String
@@ -57,13 +168,273 @@ public class Lucene extends QueryModule{
    */
   public Int search(final Int id, final String query, final String name) throws Exception {
      Data data = queryContext.resources.database(name, null);
-     LuceneIndex session = LuceneIndex.getInstance(((BigInteger) id.toJava()).intValue());
+     LuceneIndex session = session(id);
 
      session.query(query, data);
 
      return id;
    }
 
+  /**
+   * Queries the given input String and returns a collection of the found
+   * ANodes that are contained in the given nodes (or are one of them).
+   * As only elements are indexed, a text, attribute, comment or processing
+   * instruction node restricts the search to its parent element.
+   * @param id Query id
+   * @param query Query
+   * @param nodes Nodes of a single database
+   * @return Query id
+   * @throws Exception exception
+   */
+  public Int searchWithin(final Int id, final String query, final Value nodes)
+      throws Exception {
+    Data data = null;
+    IntList pres = new IntList();
+    for(Item item : nodes) {
+      if(!(item instanceof DBNode)) throw new QueryException("Database node expected: " + item);
+      DBNode node = (DBNode) item;
+      if(data == null) data = node.data;
+      else if(data != node.data) throw new QueryException("Nodes of a single database expected");
+      pres.add(node.pre);
+    }
+    if(data == null) throw new QueryException("Database nodes expected");
+
+    LuceneIndex session = session(id);
+    session.query(query, data, pres);
+    return id;
+  }
+
+  /**
+   * Evaluates the given queries on the same searcher and returns their
+   * results in one call.
+   * @param name database name
+   * @param queries queries
+   * @return map with the positions of the queries as keys and maps with
+   * the entry {@code hits} as values
+   * @throws Exception exception
+   */
+  public Map searchBatch(final String name, final Value queries) throws Exception {
+    return searchBatch(name, queries, Map.EMPTY);
+  }
+
+  /**
+   * Evaluates the given queries on the same searcher and returns their
+   * results in one call. Besides the facet options, the options map
+   * accepts {@code facets} (also return facet counts) and {@code threads}
+   * (maximum number of queries evaluated in parallel).
+   * @param name database name
+   * @param queries queries
+   * @param options options
+   * @return map with the positions of the queries as keys and maps with
+   * the entries {@code hits} and, optionally, {@code facets} as values
+   * @throws Exception exception
+   */
+  public Map searchBatch(final String name, final Value queries, final Map options)
+      throws Exception {
+    final HashMap<String, Object> opts = new HashMap<>();
+    final LuceneFacetOptions fopts = new LuceneFacetOptions(extract(options, opts,
+        "facets", "threads"));
+    final boolean flag = bool(opts, "facets");
+    final int threads = number(opts, "threads", Integer.MAX_VALUE);
+
+    String[] strings = new String[(int) queries.size()];
+    int i = 0;
+    for(Item item : queries) strings[i++] = item.toJava().toString();
+
+    Data data = queryContext.resources.database(name, null);
+    final LuceneIndex[] sessions;
+    try {
+      sessions = LuceneIndex.batch(data, strings, flag, fopts, threads);
+    } catch(final org.apache.lucene.queryparser.classic.ParseException ex) {
+      throw new QueryException(ex.getMessage());
+    }
+
+    Map result = Map.EMPTY;
+    for(int s = 0; s < sessions.length; s++) {
+      final ANode[] hits = nodes(sessions[s], sessions[s].getResult());
+      Map entry = Map.EMPTY.put(Str.get("hits"), new ValueBuilder(hits, hits.length).value(),
+          null);
+      if(flag) {
+        final ANode[] facets = sessions[s].getFResult();
+        entry = entry.put(Str.get("facets"), new ValueBuilder(facets, facets.length).value(),
+            null);
+      }
+      result = result.put(Int.get(s + 1), entry, null);
+    }
+    return result;
+  }
+
+  /**
+   * Evaluates the given query on several databases and merges their top hits
+   * by score.
+   * @param names database names
+   * @param query Query
+   * @return map with the entry {@code hits}
+   * @throws Exception exception
+   */
+  public Map searchFederated(final Value names, final String query) throws Exception {
+    return searchFederated(names, query, Map.EMPTY);
+  }
+
+  /**
+   * Evaluates the given query on several databases and merges their top hits
+   * by score. Besides the facet options, the options map accepts
+   * {@code limit} (maximum number of hits, default: 1000), {@code facets}
+   * (also return the merged facet counts) and {@code threads} (maximum number
+   * of databases searched in parallel).
+   * @param names database names
+   * @param query Query
+   * @param options options
+   * @return map with the entries {@code hits} and, optionally, {@code facets}
+   * @throws Exception exception
+   */
+  public Map searchFederated(final Value names, final String query, final Map options)
+      throws Exception {
+    final HashMap<String, Object> opts = new HashMap<>();
+    final LuceneFacetOptions fopts = new LuceneFacetOptions(extract(options, opts,
+        "facets", "threads", "limit"));
+    final boolean flag = bool(opts, "facets");
+    final int threads = number(opts, "threads", Integer.MAX_VALUE);
+    final int limit = number(opts, "limit", 1000);
+
+    ArrayList<Data> data = new ArrayList<>();
+    for(Item item : names) {
+      Data d = queryContext.resources.database(item.toJava().toString(), null);
+      if(!data.contains(d)) data.add(d);
+    }
+
+    final LuceneFederation result;
+    try {
+      result = LuceneFederation.search(data.toArray(new Data[data.size()]), query, limit, flag,
+          fopts, threads);
+    } catch(final org.apache.lucene.queryparser.classic.ParseException ex) {
+      throw new QueryException(ex.getMessage());
+    }
+    Map map = Map.EMPTY.put(Str.get("hits"),
+        new ValueBuilder(result.hits, result.hits.length).value(), null);
+    if(flag) {
+      map = map.put(Str.get("facets"),
+          new ValueBuilder(result.facets, result.facets.length).value(), null);
+    }
+    return map;
+  }
+
+  /**
+   * Moves the given options to a Java map.
+   * @param options options
+   * @param values map for the extracted options
+   * @param keys keys of the options to be extracted
+   * @return remaining options
+   * @throws QueryException query exception
+   */
+  private static Map extract(final Map options, final HashMap<String, Object> values,
+      final String... keys) throws QueryException {
+    Map rest = options;
+    for(final java.util.Map.Entry<Object, Object> entry : options.toJava().entrySet()) {
+      final String key = entry.getKey().toString();
+      if(Arrays.asList(keys).contains(key)) {
+        values.put(key, entry.getValue());
+        rest = rest.delete(Str.get(key), null);
+      }
+    }
+    return rest;
+  }
+
+  /**
+   * Returns a boolean option.
+   * @param values options
+   * @param key key
+   * @return value ({@code false} if the option is not specified)
+   * @throws QueryException query exception
+   */
+  private static boolean bool(final HashMap<String, Object> values, final String key)
+      throws QueryException {
+    final Object value = values.get(key);
+    if(value == null) return false;
+    if(!(value instanceof Boolean)) {
+      throw new QueryException("Boolean expected for option '" + key + "': " + value);
+    }
+    return (Boolean) value;
+  }
+
+  /**
+   * Returns a positive integer option.
+   * @param values options
+   * @param key key
+   * @param dflt default value
+   * @return value
+   * @throws QueryException query exception
+   */
+  private static int number(final HashMap<String, Object> values, final String key,
+      final int dflt) throws QueryException {
+    final Object value = values.get(key);
+    if(value == null) return dflt;
+    if(!(value instanceof Number) || ((Number) value).longValue() < 1) {
+      throw new QueryException("Positive integer expected for option '" + key + "': " + value);
+    }
+    return (int) Math.min(Integer.MAX_VALUE, ((Number) value).longValue());
+  }
+
+  /**
+   * Prepares a query template with placeholders of the form {@code $name},
+   * which can then be executed with different parameters without being
+   * parsed again.
+   * @param template query template
+   * @return handle of the prepared query
+   * @throws QueryException query exception
+   */
+  public Int prepare(final String template) throws QueryException {
+    try {
+      return Int.get(LuceneIndex.prepare(template));
+    } catch(final org.apache.lucene.queryparser.classic.ParseException ex) {
+      throw new QueryException(ex.getMessage());
+    }
+  }
+
+  /**
+   * Executes a prepared query with the given parameters.
+   * @param id Query id
+   * @param handle handle of the prepared query
+   * @param name database name
+   * @param params parameters
+   * @return Query id
+   * @throws Exception exception
+   */
+  public Int execute(final Int id, final Int handle, final String name, final Map params)
+      throws Exception {
+    final LuceneQueries prepared = LuceneQueries.get((int) handle.itr());
+    if(prepared == null) throw new QueryException("Unknown prepared query: " + handle.itr());
+    final HashMap<String, String> values = new HashMap<>();
+    for(final java.util.Map.Entry<Object, Object> entry : params.toJava().entrySet()) {
+      final Object value = entry.getValue();
+      final StringBuilder sb = new StringBuilder();
+      if(value instanceof Object[]) {
+        for(final Object v : (Object[]) value) sb.append(sb.length() == 0 ? "" : " ").append(v);
+      } else {
+        sb.append(value);
+      }
+      values.put(entry.getKey().toString(), sb.toString());
+    }
+
+    Data data = queryContext.resources.database(name, null);
+    LuceneIndex session = session(id);
+    try {
+      session.query(prepared, values, data);
+    } catch(final org.apache.lucene.queryparser.classic.ParseException ex) {
+      throw new QueryException(ex.getMessage());
+    }
+    return id;
+  }
+
+  /**
+   * Discards a prepared query.
+   * @param handle handle of the prepared query
+   * @return {@code true} if the prepared query existed
+   */
+  public boolean unprepare(final Int handle) {
+    return LuceneQueries.remove((int) handle.itr());
+  }
+
   /**
    * Queries the given input String and returns
    * a collection of all found ANodes and drills
@@ -75,7 +446,7 @@ public class Lucene extends QueryModule{
    */
   public Int drillDown(final Int id, final String dim,
       final Value drillDownTerm) throws Exception {
-    LuceneIndex session = LuceneIndex.getInstance(((BigInteger) id.toJava()).intValue());
+    LuceneIndex session = session(id);
 
     ArrayList<String> drill = new ArrayList<>();
     for(Item item : drillDownTerm) {
@@ -97,31 +468,129 @@ public class Lucene extends QueryModule{
    * @throws IOException I/O Exception
    */
   public ANode[] result(final Int id) throws QueryException, IOException {
-    LuceneIndex session = LuceneIndex.getInstance(((BigInteger) id.toJava()).intValue());
+    LuceneIndex session = session(id);
+
+    return nodes(session, session.getResults(false));
+  }
+
+  /**
+   * Display Lucene search results of defined Query in the given order:
+   * {@code score} (default) or {@code document}. In document order,
+   * the hits are neither scored nor ranked, and the returned sequence only
+   * creates the nodes that are accessed.
+   * @param id Query id
+   * @param options options ({@code order})
+   * @return results
+   * @throws QueryException Query exception
+   * @throws IOException I/O Exception
+   */
+  public Value result(final Int id, final Map options) throws QueryException, IOException {
+    boolean ordered = false;
+    for(final java.util.Map.Entry<Object, Object> entry : options.toJava().entrySet()) {
+      final String key = entry.getKey().toString();
+      final String value = entry.getValue().toString();
+      if(!key.equals("order")) throw new QueryException("Unknown result option: " + key);
+      if(!value.equals("score") && !value.equals("document")) {
+        throw new QueryException("Unknown result order: " + value);
+      }
+      ordered = value.equals("document");
+    }
+    LuceneIndex session = session(id);
+    if(ordered) return seq(session, session.getOrderedResults(), true);
+    final ANode[] nodes = nodes(session, session.getResults(false));
+    return Seq.get(nodes, nodes.length);
+  }
+
+  /**
+   * Display a page of the Lucene search results of defined Query.
+   * Only the hits up to the end of the page are ranked and resolved, and
+   * the returned sequence only creates the nodes that are accessed.
+   * @param id Query id
+   * @param offset Number of hits to skip
+   * @param limit Maximum number of hits
+   * @return results
+   * @throws QueryException Query exception
+   * @throws IOException I/O Exception
+   */
+  public Value result(final Int id, final Int offset, final Int limit)
+      throws QueryException, IOException {
+    LuceneIndex session = session(id);
+    return seq(session, session.getResults((int) offset.itr(), (int) limit.itr()), false);
+  }
+
+  /**
+   * Display the next page of the Lucene search results of defined Query.
+   * The page starts after the last hit returned by the previous call, so
+   * the results can be consumed in chunks. As with
+   * {@link #result(Int, Int, Int)}, the nodes are created when accessed.
+   * @param id Query id
+   * @param limit Maximum number of hits
+   * @return results
+   * @throws QueryException Query exception
+   * @throws IOException I/O Exception
+   */
+  public Value next(final Int id, final Int limit) throws QueryException, IOException {
+    LuceneIndex session = session(id);
+    return seq(session, session.getNext((int) limit.itr()), false);
+  }
+
+  /**
+   * Returns the Query Instance with the given ID.
+   * @param id Query id
+   * @return session
+   * @throws QueryException Query exception
+   */
+  private static LuceneIndex session(final Int id) throws QueryException {
+    final LuceneIndex session = LuceneSessions.get((int) id.itr());
+    if(session == null) throw new QueryException("Unknown or expired query session: " + id);
+    return session;
+  }
+
+  /**
+   * Returns a sequence of the database nodes with the given pre values.
+   * The nodes are only created when they are accessed.
+   * @param session Query session
+   * @param pres pre values
+   * @param sorted indicates if the pre values are sorted and duplicate-free,
+   *   in which case the sequence is regarded as being in document order
+   * @return nodes
+   */
+  private static Value seq(final LuceneIndex session, final int[] pres, final boolean sorted) {
+    long t = System.nanoTime();
+    Value seq = DBNodeSeq.get(new IntList(pres), session.getData(), false, sorted);
+    session.time(LuceneStats.NODES, t);
+    return seq;
+  }
+
+  /**
+   * Creates database nodes for the given pre values.
+   * @param session Query session
+   * @param pres pre values
+   * @return ANode[] nodes
+   */
+  private static ANode[] nodes(final LuceneIndex session, final int[] pres) {
+    long t = System.nanoTime();
     Data data = session.getData();
+    int length = pres.length;
 
-    ArrayList<Integer> resultContainer = session.getResults(false);
-    int length = resultContainer.size();
-    
     ANode[] nodes = new ANode[length];
-    
+
     for(int i = 0; i < length; i++) {
-      int pre =  resultContainer.get(i);
-      DBNode n = new DBNode(data, data.pre(pre));
-      nodes[i] = n;
+      nodes[i] = new DBNode(data, pres[i]);
     }
+    session.time(LuceneStats.NODES, t);
     return nodes;
-
   }
-  
+
   /**
    * Display Lucene facet results of defined Query.
    * @param id Query id
    * @return ANode[] result
-   * @throws IOException
+   * @throws QueryException Query exception
+   * @throws IOException I/O Exception
    */
-  public ANode[] facetResult(final Int id) throws IOException {
-	LuceneIndex session = LuceneIndex.getInstance(((BigInteger) id.toJava()).intValue());
+  public ANode[] facetResult(final Int id) throws QueryException, IOException {
+	LuceneIndex session = session(id);
 	
 	session.getResults(true);
 	ANode[] nodes = session.getFResult();
@@ -130,8 +599,78 @@ public class Lucene extends QueryModule{
   }
 
   /**
-   * Merges Number Segments of the Index to
-   * given Number maxNumSegments.
+   * Display Lucene facet results of defined Query, using the given facet
+   * options ({@code dims}, {@code top}, {@code depth}).
+   * @param id Query id
+   * @param options Facet options
+   * @return ANode[] result
+   * @throws QueryException Query exception
+   * @throws IOException I/O Exception
+   */
+  public ANode[] facetResult(final Int id, final Map options) throws QueryException, IOException {
+    LuceneIndex session = session(id);
+    session.getResults(true, new LuceneFacetOptions(options));
+    return session.getFResult();
+  }
+
+  /**
+   * Returns the top entries below the given facet path of defined Query.
+   * Only a single level is returned, so clients can expand the facet tree
+   * step by step.
+   * @param id Query id
+   * @param dim Dimension
+   * @param path Path below the dimension
+   * @return ANode[] entries
+   * @throws QueryException Query exception
+   * @throws IOException I/O Exception
+   */
+  public ANode[] facetChildren(final Int id, final String dim, final Value path)
+      throws QueryException, IOException {
+    LuceneFacetOptions fopts = new LuceneFacetOptions();
+    fopts.depth = 1;
+    return children(id, dim, path, fopts);
+  }
+
+  /**
+   * Returns the top entries below the given facet path of defined Query,
+   * using the given facet options ({@code top}, {@code depth}).
+   * @param id Query id
+   * @param dim Dimension
+   * @param path Path below the dimension
+   * @param options Facet options
+   * @return ANode[] entries
+   * @throws QueryException Query exception
+   * @throws IOException I/O Exception
+   */
+  public ANode[] facetChildren(final Int id, final String dim, final Value path,
+      final Map options) throws QueryException, IOException {
+    LuceneFacetOptions fopts = new LuceneFacetOptions();
+    fopts.depth = 1;
+    return children(id, dim, path, fopts.assign(options));
+  }
+
+  /**
+   * Returns the top entries below the given facet path of defined Query.
+   * @param id Query id
+   * @param dim Dimension
+   * @param path Path below the dimension
+   * @param fopts Facet options
+   * @return ANode[] entries
+   * @throws QueryException Query exception
+   * @throws IOException I/O Exception
+   */
+  private static ANode[] children(final Int id, final String dim, final Value path,
+      final LuceneFacetOptions fopts) throws QueryException, IOException {
+    LuceneIndex session = session(id);
+    ArrayList<String> labels = new ArrayList<>();
+    for(Item item : path) labels.add((String) item.toJava());
+    return session.facetChildren(dim, labels.toArray(new String[labels.size()]), fopts);
+  }
+
+  /**
+   * Merges the segments of the Index to at most the given number
+   * in the background. The status can be requested with
+   * {@link #optimizeStatus(String)}.
    * @param dbname Database Name
    * @param maxNumSeg Number of segments
    * @throws QueryException Query Exception
@@ -139,21 +678,159 @@ public class Lucene extends QueryModule{
    */
   public void optimize(final String dbname, final Int maxNumSeg)
       throws QueryException, IOException {
+    Data data = queryContext.resources.database(dbname, null);
+    optimize(dbname, LuceneWriter.get(data), maxNumSeg);
+  }
+
+  /**
+   * Merges the segments of the Index to at most the given number
+   * in the background. The given options ({@code ram}, {@code segments},
+   * {@code segmentsize}, {@code mergethreads}, {@code mergecount},
+   * {@code mergerate}) are applied to the open writer of the Database.
+   * @param dbname Database Name
+   * @param maxNumSeg Number of segments
+   * @param options Merge options
+   * @throws QueryException Query Exception
+   * @throws IOException I/O Exception
+   */
+  public void optimize(final String dbname, final Int maxNumSeg, final Map options)
+      throws QueryException, IOException {
+    LuceneOptions.supported(options, "ram", "segments", "segmentsize",
+        "mergethreads", "mergecount", "mergerate");
+    Data data = queryContext.resources.database(dbname, null);
+    optimize(dbname, LuceneWriter.get(data, new LuceneOptions(options)), maxNumSeg);
+  }
+
+  /**
+   * Starts merging the segments of the given writer.
+   * @param dbname Database Name
+   * @param writer Writer
+   * @param maxNumSeg Number of segments
+   * @throws QueryException Query Exception
+   */
+  private static void optimize(final String dbname, final LuceneWriter writer,
+      final Int maxNumSeg) throws QueryException {
+    if(!writer.optimize((int) maxNumSeg.itr())) {
+      throw new QueryException("Index is already being optimized: " + dbname);
+    }
+  }
+
+  /**
+   * Returns the state and progress of the last optimization of the Index.
+   * @param dbname Database Name
+   * @return optimize element
+   * @throws QueryException Query Exception
+   * @throws IOException I/O Exception
+   */
+  public FElem optimizeStatus(final String dbname) throws QueryException, IOException {
+    Data data = queryContext.resources.database(dbname, null);
+    return LuceneWriter.get(data).status();
+  }
+
+  /**
+   * Releases the cached Lucene readers and the writer of the given Database.
+   * Should be called after a database has been closed or dropped.
+   * @param name Database name
+   * @throws IOException I/O exception
+   */
+  public void release(final String name) throws IOException {
+    String path = queryContext.context.globalopts.dbpath(name).toString();
+    LuceneReaders.close(path);
+    LuceneWriter.close(path);
+  }
 
-    int seg = (int) maxNumSeg.toJava();
-    if(seg < 5) {
-      StandardAnalyzer analyzer = new StandardAnalyzer(Version.LUCENE_4_9);
-      Data data = queryContext.resources.database(dbname, null);
-      IOFile indexpath = data.meta.path;
-      File indexFile = new File(indexpath.toString() + "/" + "LuceneIndex");
-      Directory index = FSDirectory.open(indexFile);
-      IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_9, analyzer);
-      IndexWriter writer = new IndexWriter(index, config);
+  /**
+   * Returns the report of the last warm-up.
+   * @return warmup element, or an empty sequence if no warm-up has been run
+   */
+  public Value warmup() {
+    final FElem report = LuceneWarmup.last();
+    return report != null ? report : Empty.SEQ;
+  }
+
+  /**
+   * Warms up the Indexes of the given Databases.
+   * @param names Database names
+   * @return warmup element
+   * @throws QueryException Query exception
+   */
+  public FElem warmup(final Value names) throws QueryException {
+    return warmup(names, Empty.SEQ);
+  }
+
+  /**
+   * Warms up the Indexes of the given Databases and evaluates the given
+   * Queries on each of them.
+   * @param names Database names
+   * @param queries Queries
+   * @return warmup element
+   * @throws QueryException Query exception
+   */
+  public FElem warmup(final Value names, final Value queries) throws QueryException {
+    final ArrayList<String> dbs = new ArrayList<>(), qs = new ArrayList<>();
+    for(Item item : names) dbs.add(item.toJava().toString());
+    for(Item item : queries) qs.add(item.toJava().toString());
+    return LuceneWarmup.run(queryContext.context, dbs.toArray(new String[dbs.size()]),
+        qs.toArray(new String[qs.size()]));
+  }
 
-      writer.forceMerge(seg);
+  /**
+   * Returns the directory implementation of the Index of the given Database.
+   * @param name Database name
+   * @return implementation
+   */
+  public String directory(final String name) {
+    return LuceneDirectory.type(name);
+  }
 
-      writer.close();
+  /**
+   * Chooses the directory implementation of the Index of the given Database
+   * ({@code fs}, {@code mmap}, {@code nio} or {@code ram}).
+   * Cached readers and the writer are closed, so the Index is opened
+   * again with the new implementation.
+   * @param name Database name
+   * @param type Implementation
+   * @throws QueryException Query exception
+   * @throws IOException I/O exception
+   */
+  public void directory(final String name, final String type) throws QueryException, IOException {
+    try {
+      LuceneDirectory.type(name, type);
+    } catch(final IllegalArgumentException ex) {
+      throw new QueryException(ex.getMessage());
     }
+    release(name);
+  }
+
+  /**
+   * Returns the number of entries, the estimated memory and the number
+   * of hits and misses of the result cache.
+   * @return cache element
+   */
+  public FElem cache() {
+    return new FElem("cache").add("entries", Integer.toString(LuceneCache.size())).
+        add("memory", Long.toString(LuceneCache.memory())).
+        add("hits", Long.toString(LuceneCache.hits())).
+        add("misses", Long.toString(LuceneCache.misses()));
+  }
+
+  /**
+   * Returns the counters and phase histograms of all Databases
+   * that have been indexed or queried.
+   * @return stats element
+   */
+  public FElem stats() {
+    return LuceneStats.all();
+  }
+
+  /**
+   * Returns the phase times of the last evaluation of defined Query.
+   * @param id Query id
+   * @return query element
+   * @throws QueryException Query exception
+   */
+  public FElem stats(final Int id) throws QueryException {
+    return session(id).timings((int) id.itr());
   }
 
   /**
@@ -164,9 +841,35 @@ public class Lucene extends QueryModule{
    * @throws IOException  I/O exception
    */
   public ANode[] facets(final String name) throws QueryException, IOException {
+    return facets(name, new LuceneFacetOptions());
+  }
+
+  /**
+   * Returns facets of given Database, using the given facet options
+   * ({@code dims}, {@code top}, {@code depth}).
+   * @param name Database name
+   * @param options Facet options
+   * @return facets of given Database
+   * @throws QueryException Query exception
+   * @throws IOException  I/O exception
+   */
+  public ANode[] facets(final String name, final Map options) throws QueryException, IOException {
+    return facets(name, new LuceneFacetOptions(options));
+  }
+
+  /**
+   * Returns facets of given Database.
+   * @param name Database name
+   * @param fopts Facet options
+   * @return facets of given Database
+   * @throws QueryException Query exception
+   * @throws IOException  I/O exception
+   */
+  private ANode[] facets(final String name, final LuceneFacetOptions fopts)
+      throws QueryException, IOException {
     Data data = queryContext.resources.database(name, null);
 
-    ArrayList<ANode> results = LuceneIndex.facet(data);
+    ArrayList<ANode> results = LuceneIndex.facet(data, fopts);
     int size = results.size();
     ANode[] resultNodes =  new ANode[size];
 
@@ -0,0 +1,196 @@
+package org.basex.modules;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.lucene.document.*;
+import org.apache.lucene.facet.*;
+import org.apache.lucene.facet.taxonomy.*;
+import org.apache.lucene.index.*;
+import org.basex.util.*;
+
+/**
+ * Pipeline for adding documents to a Lucene index. The thread that walks the
+ * database passes on the created documents in batches; a pool of workers
+ * builds the facet fields and adds them to the index. The number of pending
+ * batches is bounded: if all workers are busy, the walking thread processes
+ * the next batch itself.
+ *
+ * @author Stephan
+ *
+ */
+final class LuceneBuilder {
+  /**
+   * Number of documents per batch.
+   */
+  private static final int BATCH = 256;
+
+  /**
+   * Index writer.
+   */
+  private final IndexWriter writer;
+  /**
+   * Taxonomy writer.
+   */
+  private final TaxonomyWriter taxoWriter;
+  /**
+   * Facets configuration.
+   */
+  private final FacetsConfig fconfig;
+  /**
+   * Options.
+   */
+  private final LuceneOptions options;
+  /**
+   * Statistics of the database.
+   */
+  private final LuceneStats stats;
+  /**
+   * Worker pool ({@code null} if documents are added by the calling thread).
+   */
+  private final ExecutorService pool;
+  /**
+   * Number of added documents.
+   */
+  private final AtomicLong count = new AtomicLong();
+  /**
+   * First error raised by a worker.
+   */
+  private final AtomicReference<IOException> error = new AtomicReference<>();
+  /**
+   * Performance.
+   */
+  private final Performance perf = new Performance();
+  /**
+   * Start time (ms).
+   */
+  private final long start = System.currentTimeMillis();
+  /**
+   * Current batch.
+   */
+  private ArrayList<Document> batch = new ArrayList<>(BATCH);
+
+  /**
+   * Constructor.
+   * @param writer index writer
+   * @param taxoWriter taxonomy writer
+   * @param fconfig facets configuration
+   * @param options options
+   * @param stats statistics of the database
+   */
+  LuceneBuilder(final IndexWriter writer, final TaxonomyWriter taxoWriter,
+      final FacetsConfig fconfig, final LuceneOptions options, final LuceneStats stats) {
+    this.writer = writer;
+    this.taxoWriter = taxoWriter;
+    this.fconfig = fconfig;
+    this.options = options;
+    this.stats = stats;
+
+    final int threads = options.threads;
+    pool = threads < 2 ? null : new ThreadPoolExecutor(threads, threads, 0,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * 2),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Adds a document.
+   * @param doc document
+   * @throws IOException I/O exception
+   */
+  void add(final Document doc) throws IOException {
+    batch.add(doc);
+    if(batch.size() == BATCH) flush();
+  }
+
+  /**
+   * Adds all pending documents, waits for the workers and commits the index.
+   * The taxonomy is committed first, so that readers never see documents
+   * whose categories are missing in the taxonomy.
+   * @param build full build (reports the number of documents)
+   * @throws IOException I/O exception
+   */
+  void finish(final boolean build) throws IOException {
+    flush();
+    if(pool != null) {
+      pool.shutdown();
+      try {
+        while(!pool.awaitTermination(1, TimeUnit.SECONDS));
+      } catch(final InterruptedException ex) {
+        throw new InterruptedIOException(ex.getMessage());
+      }
+    }
+    check();
+
+    if(options.merge > 0) writer.forceMerge(options.merge);
+    taxoWriter.commit();
+    writer.commit();
+
+    final long docs = count.get();
+    final long time = Math.max(1, System.currentTimeMillis() - start);
+    stats.built(docs, time);
+    if(build) Util.errln("Lucene index: % documents in % (% docs/s).", docs, perf, docs * 1000 / time);
+  }
+
+  /**
+   * Aborts the pipeline without waiting for pending documents.
+   */
+  void abort() {
+    if(pool != null) pool.shutdownNow();
+  }
+
+  /**
+   * Passes on the current batch.
+   * @throws IOException I/O exception
+   */
+  private void flush() throws IOException {
+    check();
+    if(batch.isEmpty()) return;
+
+    final ArrayList<Document> docs = batch;
+    batch = new ArrayList<>(BATCH);
+    if(pool == null) {
+      addAll(docs);
+    } else {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            addAll(docs);
+          } catch(final IOException ex) {
+            error.compareAndSet(null, ex);
+          } catch(final RuntimeException ex) {
+            error.compareAndSet(null, new IOException(ex));
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Builds and adds the given documents.
+   * @param docs documents
+   * @throws IOException I/O exception
+   */
+  private void addAll(final ArrayList<Document> docs) throws IOException {
+    if(error.get() != null) return;
+    for(final Document doc : docs) writer.addDocument(fconfig.build(taxoWriter, doc));
+
+    final int p = options.progress;
+    final long n = count.addAndGet(docs.size()), c = n - docs.size();
+    if(p > 0 && c / p != n / p) {
+      final long time = Math.max(1, System.currentTimeMillis() - start);
+      Util.errln("Lucene index: % documents (% docs/s)...", n, n * 1000 / time);
+    }
+  }
+
+  /**
+   * Throws the first error raised by a worker.
+   * @throws IOException I/O exception
+   */
+  private void check() throws IOException {
+    final IOException ex = error.get();
+    if(ex != null) throw ex;
+  }
+}
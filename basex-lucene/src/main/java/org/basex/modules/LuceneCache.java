@@ -0,0 +1,199 @@
+package org.basex.modules;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager.SearcherAndTaxonomy;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.basex.data.*;
+
+/**
+ * Least recently used cache for hit lists and facet trees. Entries are keyed
+ * by database, index generation and normalized query, so they are never
+ * returned for a changed index; entries of older generations are dropped as
+ * soon as a new generation is seen. Hit lists contain node ids, which, in
+ * contrast to pre values, are not changed by updates of the database. The memory of all entries is bounded by
+ * the system property {@code lucene.cache.memory} (MB, default: 64);
+ * {@code 0} disables the cache.
+ *
+ * @author Stephan
+ *
+ */
+public final class LuceneCache {
+  /**
+   * Maximum memory of all entries (bytes).
+   */
+  private static final long MAX = Long.getLong("lucene.cache.memory", 64) << 20;
+  /**
+   * Cached entries, in access order.
+   */
+  private static final LinkedHashMap<String, Entry> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+  /**
+   * Last seen index generations, indexed by database path.
+   */
+  private static final HashMap<String, Long> GENERATIONS = new HashMap<>();
+  /**
+   * Estimated memory of all entries (bytes).
+   */
+  private static long memory;
+  /**
+   * Number of cache hits.
+   */
+  private static final AtomicLong HITS = new AtomicLong();
+  /**
+   * Number of cache misses.
+   */
+  private static final AtomicLong MISSES = new AtomicLong();
+
+  /**
+   * Private constructor.
+   */
+  private LuceneCache() { }
+
+  /**
+   * Returns the cache key for a query on the given searcher.
+   * Entries of older index generations of the database are dropped.
+   * @param data database data
+   * @param st searcher and taxonomy reader
+   * @param type type of the cached result
+   * @param query query (may be {@code null})
+   * @return key, or {@code null} if the cache is disabled
+   */
+  static String key(final Data data, final SearcherAndTaxonomy st, final String type,
+      final Query query) {
+    if(MAX <= 0) return null;
+
+    final String path = data.meta.path.toString();
+    final long gen = ((DirectoryReader) st.searcher.getIndexReader()).getVersion();
+    synchronized(LuceneCache.class) {
+      final Long old = GENERATIONS.put(path, gen);
+      if(old != null && old != gen) invalidate(path);
+    }
+    return path + '\0' + gen + '\0' + type + '\0' + (query == null ? "" : query.toString());
+  }
+
+  /**
+   * Returns a cached value.
+   * @param key key (may be {@code null})
+   * @return value, or {@code null} if it is not cached
+   */
+  static synchronized Object get(final String key) {
+    if(key == null) return null;
+    final Entry entry = CACHE.get(key);
+    (entry == null ? MISSES : HITS).incrementAndGet();
+    return entry == null ? null : entry.value;
+  }
+
+  /**
+   * Returns the cached values of several keys, which are counted as a single
+   * lookup.
+   * @param keys keys (may be {@code null})
+   * @return values, or {@code null} if one of them is not cached
+   */
+  static synchronized Object[] getAll(final String... keys) {
+    final Object[] values = new Object[keys.length];
+    for(int k = 0; k < keys.length; k++) {
+      final Entry entry = keys[k] == null ? null : CACHE.get(keys[k]);
+      if(entry == null) {
+        if(keys[k] != null) MISSES.incrementAndGet();
+        return null;
+      }
+      values[k] = entry.value;
+    }
+    HITS.incrementAndGet();
+    return values;
+  }
+
+  /**
+   * Caches a value. Least recently used entries are dropped if the memory limit is exceeded.
+   * @param key key (may be {@code null})
+   * @param value value
+   * @param size estimated memory of the value (bytes)
+   */
+  static synchronized void put(final String key, final Object value, final long size) {
+    if(key == null || size > MAX) return;
+
+    final Entry old = CACHE.put(key, new Entry(value, size));
+    if(old != null) memory -= old.size;
+    memory += size;
+
+    final Iterator<Entry> iter = CACHE.values().iterator();
+    while(memory > MAX && iter.hasNext()) {
+      memory -= iter.next().size;
+      iter.remove();
+    }
+  }
+
+  /**
+   * Drops all entries of the database with the given path.
+   * @param path database path
+   */
+  static synchronized void invalidate(final String path) {
+    final String prefix = path + '\0';
+    final Iterator<Map.Entry<String, Entry>> iter = CACHE.entrySet().iterator();
+    while(iter.hasNext()) {
+      final Map.Entry<String, Entry> entry = iter.next();
+      if(entry.getKey().startsWith(prefix)) {
+        memory -= entry.getValue().size;
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of cached entries.
+   * @return number of entries
+   */
+  public static synchronized int size() {
+    return CACHE.size();
+  }
+
+  /**
+   * Returns the estimated memory of all entries.
+   * @return memory in bytes
+   */
+  public static synchronized long memory() {
+    return memory;
+  }
+
+  /**
+   * Returns the number of cache hits.
+   * @return number of hits
+   */
+  public static long hits() {
+    return HITS.get();
+  }
+
+  /**
+   * Returns the number of cache misses.
+   * @return number of misses
+   */
+  public static long misses() {
+    return MISSES.get();
+  }
+
+  /**
+   * Cache entry.
+   */
+  private static final class Entry {
+    /**
+     * Cached value.
+     */
+    final Object value;
+    /**
+     * Estimated memory of the value.
+     */
+    final long size;
+
+    /**
+     * Constructor.
+     * @param value value
+     * @param size estimated memory
+     */
+    Entry(final Object value, final long size) {
+      this.value = value;
+      this.size = size;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package org.basex.modules;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.*;
+import org.basex.data.*;
+
+/**
+ * Location and directory implementation of the Lucene indexes of a database.
+ * The implementation is chosen per database by the system property
+ * {@code lucene.directory.<database>}, or, for all databases, by
+ * {@code lucene.directory}, and it can be changed at runtime:
+ * <ul>
+ *   <li>{@code fs}: default implementation of the platform (default)</li>
+ *   <li>{@code mmap}: memory-mapped files, read without copying</li>
+ *   <li>{@code nio}: positional reads via file channels</li>
+ *   <li>{@code ram}: the committed index is copied to the heap when it is
+ *   opened for reading; writes go to disk</li>
+ * </ul>
+ * Near-real-time caching of new segments is not offered, as readers are
+ * only opened on committed indexes and never from the writer, so they would
+ * not benefit from it.
+ *
+ * @author Stephan
+ *
+ */
+public final class LuceneDirectory {
+  /**
+   * Name of the index directory.
+   */
+  static final String INDEX = "LuceneIndex";
+  /**
+   * Name of the taxonomy directory.
+   */
+  static final String TAXONOMY = "LuceneIndex-taxo";
+  /**
+   * Supported implementations.
+   */
+  static final String[] TYPES = { "fs", "mmap", "nio", "ram" };
+  /**
+   * Implementations chosen at runtime, indexed by database name.
+   */
+  private static final ConcurrentHashMap<String, String> CHOSEN = new ConcurrentHashMap<>();
+
+  /**
+   * Private constructor.
+   */
+  private LuceneDirectory() { }
+
+  /**
+   * Returns the index directory of the database with the given path.
+   * @param path database path
+   * @return index directory
+   */
+  static File index(final String path) {
+    return new File(path, INDEX);
+  }
+
+  /**
+   * Returns the index directory of the given database.
+   * @param data database data
+   * @return index directory
+   */
+  static File index(final Data data) {
+    return index(data.meta.path.toString());
+  }
+
+  /**
+   * Returns the taxonomy directory of the given database.
+   * @param data database data
+   * @return taxonomy directory
+   */
+  static File taxonomy(final Data data) {
+    return taxonomy(data.meta.path.toString());
+  }
+
+  /**
+   * Returns the taxonomy directory of the database with the given path.
+   * @param path database path
+   * @return taxonomy directory
+   */
+  static File taxonomy(final String path) {
+    return new File(path, TAXONOMY);
+  }
+
+  /**
+   * Returns the directory implementation of the given database.
+   * @param name database name
+   * @return implementation
+   */
+  public static String type(final String name) {
+    final String type = CHOSEN.get(name);
+    return type != null ? type : System.getProperty("lucene.directory." + name,
+        System.getProperty("lucene.directory", "fs"));
+  }
+
+  /**
+   * Chooses the directory implementation of the given database. Takes effect
+   * when the index is opened the next time.
+   * @param name database name
+   * @param type implementation
+   * @throws IllegalArgumentException if the implementation is unknown
+   */
+  public static void type(final String name, final String type) {
+    for(final String t : TYPES) {
+      if(t.equals(type)) {
+        CHOSEN.put(name, type);
+        return;
+      }
+    }
+    throw new IllegalArgumentException("Unknown directory implementation: " + type);
+  }
+
+  /**
+   * Opens the index or taxonomy directory of the given database.
+   * @param data database data
+   * @param taxonomy taxonomy directory
+   * @param write open for writing
+   * @return directory
+   * @throws IOException I/O exception
+   */
+  static Directory open(final Data data, final boolean taxonomy, final boolean write)
+      throws IOException {
+    return open(data.meta.name, data.meta.path.toString(), taxonomy, write);
+  }
+
+  /**
+   * Opens the index or taxonomy directory of the database with the given
+   * name and path.
+   * @param name database name
+   * @param path database path
+   * @param taxonomy taxonomy directory
+   * @param write open for writing
+   * @return directory
+   * @throws IOException I/O exception
+   */
+  static Directory open(final String name, final String path, final boolean taxonomy,
+      final boolean write) throws IOException {
+    final File file = taxonomy ? taxonomy(path) : index(path);
+    switch(type(name)) {
+      case "mmap":
+        return new MMapDirectory(file);
+      case "nio":
+        return new NIOFSDirectory(file);
+      case "ram":
+        if(write) return FSDirectory.open(file);
+        try(final Directory dir = FSDirectory.open(file)) {
+          return new RAMDirectory(dir, IOContext.READ);
+        }
+      default:
+        return FSDirectory.open(file);
+    }
+  }
+
+  /**
+   * Checks if the database with the given name keeps a copy of its index in memory.
+   * @param name database name
+   * @return result of check
+   */
+  static boolean resident(final String name) {
+    return type(name).equals("ram");
+  }
+
+  /**
+   * Returns the generations of the last commits of the index and taxonomy
+   * of the database with the given path.
+   * @param path database path
+   * @return generations
+   */
+  static long[] generations(final String path) {
+    return new long[] { generation(index(path)), generation(taxonomy(path)) };
+  }
+
+  /**
+   * Returns the generation of the last commit in the given directory.
+   * @param dir directory
+   * @return generation, or {@code -1} if no commit exists
+   */
+  private static long generation(final File dir) {
+    final String[] files = dir.list();
+    return files == null ? -1 : SegmentInfos.getLastCommitGeneration(files);
+  }
+}
@@ -0,0 +1,79 @@
+package org.basex.modules;
+
+import org.basex.query.*;
+import org.basex.query.value.map.Map;
+
+/**
+ * Options for building facet trees. The defaults can be set via system
+ * properties with the prefix {@code lucene.facet.} (e.g.
+ * {@code -Dlucene.facet.depth=2}), and they can be overwritten
+ * per call by passing a map with the same keys.
+ *
+ * @author Stephan
+ *
+ */
+public final class LuceneFacetOptions {
+  /**
+   * Maximum number of dimensions, ordered by their counts.
+   */
+  public int dims = Integer.getInteger("lucene.facet.dims", Integer.MAX_VALUE);
+  /**
+   * Maximum number of entries per level.
+   */
+  public int top = Integer.getInteger("lucene.facet.top", 10);
+  /**
+   * Maximum number of levels below a dimension or path.
+   */
+  public int depth = Integer.getInteger("lucene.facet.depth", Integer.MAX_VALUE);
+  /**
+   * Number of hits that are sampled for counting facets; {@code 0} counts
+   * all hits. Sampled counts are scaled up to the number of hits.
+   */
+  public int sample = Integer.getInteger("lucene.facet.sample", 0);
+
+  /**
+   * Constructor, using the default options.
+   */
+  public LuceneFacetOptions() { }
+
+  /**
+   * Constructor, overwriting the default options with the entries of the given map.
+   * @param options options map
+   * @throws QueryException query exception
+   */
+  public LuceneFacetOptions(final Map options) throws QueryException {
+    assign(options);
+  }
+
+  /**
+   * Overwrites the current options with the entries of the given map.
+   * @param options options map
+   * @return self reference
+   * @throws QueryException query exception
+   */
+  LuceneFacetOptions assign(final Map options) throws QueryException {
+    for(final java.util.Map.Entry<Object, Object> entry : options.toJava().entrySet()) {
+      final String key = entry.getKey().toString();
+      final Object value = entry.getValue();
+      final int min = key.equals("sample") ? 0 : 1;
+      if(!(value instanceof Number) || ((Number) value).longValue() < min) {
+        throw new QueryException((min == 0 ? "Non-negative" : "Positive") +
+            " integer expected for option '" + key + "': " + value);
+      }
+      final int num = (int) Math.min(Integer.MAX_VALUE, ((Number) value).longValue());
+      switch(key) {
+        case "dims": dims = num; break;
+        case "top": top = num; break;
+        case "depth": depth = num; break;
+        case "sample": sample = num; break;
+        default: throw new QueryException("Unknown facet option: " + key);
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return dims + "/" + top + "/" + depth + "/" + sample;
+  }
+}
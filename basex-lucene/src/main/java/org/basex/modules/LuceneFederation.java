@@ -0,0 +1,237 @@
+package org.basex.modules;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.lucene.facet.*;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager.SearcherAndTaxonomy;
+import org.apache.lucene.queryparser.classic.*;
+import org.apache.lucene.search.*;
+import org.basex.data.*;
+import org.basex.query.value.node.*;
+
+/**
+ * Search across several databases. The index of each database is searched
+ * by its own thread, using the pool of {@link LuceneIndex#batch}. The top
+ * hits of all databases are merged by score, and the facet counts are
+ * merged by their labels. As the indexes are independent, the scores of
+ * each database are based on its own term statistics.
+ *
+ * @author Stephan
+ *
+ */
+final class LuceneFederation {
+  /**
+   * Order of merged entries: descending values, then ascending labels.
+   */
+  private static final Comparator<LabelAndValue> ORDER = new Comparator<LabelAndValue>() {
+    @Override
+    public int compare(final LabelAndValue a, final LabelAndValue b) {
+      final int c = Long.compare(b.value.longValue(), a.value.longValue());
+      return c != 0 ? c : a.label.compareTo(b.label);
+    }
+  };
+
+  /**
+   * Merged hits, in the order of their scores.
+   */
+  final DBNode[] hits;
+  /**
+   * Merged facet trees ({@code null} if no facets have been requested).
+   */
+  final ANode[] facets;
+
+  /**
+   * Constructor.
+   * @param hits merged hits
+   * @param facets merged facet trees
+   */
+  private LuceneFederation(final DBNode[] hits, final ANode[] facets) {
+    this.hits = hits;
+    this.facets = facets;
+  }
+
+  /**
+   * Evaluates a query on the given databases.
+   * @param data databases
+   * @param query query
+   * @param limit maximum number of hits
+   * @param flag Facetflag
+   * @param fopts facet options
+   * @param threads maximum number of threads
+   * @return merged result
+   * @throws ParseException Parse exception
+   * @throws IOException I/O exception
+   */
+  static LuceneFederation search(final Data[] data, final String query, final int limit,
+      final boolean flag, final LuceneFacetOptions fopts, final int threads)
+      throws ParseException, IOException {
+    final int size = data.length;
+    final LuceneIndex[] sessions = new LuceneIndex[size];
+    final SearcherAndTaxonomy[] sts = new SearcherAndTaxonomy[size];
+    final TopDocs[] tops = new TopDocs[size];
+    try {
+      for(int d = 0; d < size; d++) {
+        sessions[d] = new LuceneIndex();
+        sessions[d].query(query, data[d]);
+        final long t = System.nanoTime();
+        sts[d] = LuceneReaders.acquire(data[d]);
+        sessions[d].time(LuceneStats.ACQUIRE, t);
+      }
+
+      final AtomicInteger next = new AtomicInteger();
+      final int workers = LuceneIndex.BATCH == null ? 0 :
+        Math.min(Math.min(threads, LuceneIndex.BATCHSIZE), size) - 1;
+      final ArrayList<Future<Void>> futures = new ArrayList<>();
+      for(int f = 0; f < workers; f++) {
+        futures.add(LuceneIndex.BATCH.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            evaluate(sessions, sts, tops, next, limit, flag, fopts.sample);
+            return null;
+          }
+        }));
+      }
+      try {
+        evaluate(sessions, sts, tops, next, limit, flag, fopts.sample);
+        for(final Future<Void> future : futures) future.get();
+      } catch(final InterruptedException ex) {
+        throw new InterruptedIOException(ex.getMessage());
+      } catch(final ExecutionException ex) {
+        final Throwable cause = ex.getCause();
+        if(cause instanceof IOException) throw (IOException) cause;
+        if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+        throw new IOException(cause);
+      } finally {
+        for(final Future<Void> future : futures) future.cancel(true);
+      }
+
+      // merge hits; the document ids are replaced by the positions of the hits
+      final TopDocs[] shards = new TopDocs[size];
+      for(int d = 0; d < size; d++) {
+        final ScoreDoc[] sds = tops[d].scoreDocs;
+        final ScoreDoc[] positions = new ScoreDoc[sds.length];
+        for(int s = 0; s < sds.length; s++) positions[s] = new ScoreDoc(s, sds[s].score);
+        shards[d] = new TopDocs(tops[d].totalHits, positions, tops[d].getMaxScore());
+      }
+      final ScoreDoc[] merged = TopDocs.merge(null, limit, shards).scoreDocs;
+      final DBNode[] hits = new DBNode[merged.length];
+      for(int m = 0; m < merged.length; m++) {
+        final ScoreDoc sd = merged[m];
+        hits[m] = new DBNode(data[sd.shardIndex], sessions[sd.shardIndex].getResult()[sd.doc]);
+      }
+
+      ANode[] facets = null;
+      if(flag) {
+        final Facets[] counts = new Facets[size];
+        for(int d = 0; d < size; d++) counts[d] = sessions[d].counts();
+        final ArrayList<ANode> elems = LuceneIndex.elems(new Merged(counts), fopts);
+        facets = elems.toArray(new ANode[elems.size()]);
+      }
+      return new LuceneFederation(hits, facets);
+    } finally {
+      for(final SearcherAndTaxonomy st : sts) {
+        if(st != null) LuceneReaders.release(st);
+      }
+    }
+  }
+
+  /**
+   * Evaluates the query on the databases until all of them have been taken.
+   * @param sessions sessions
+   * @param sts searchers and taxonomy readers
+   * @param tops top hits
+   * @param next index of the next database
+   * @param limit maximum number of hits
+   * @param flag Facetflag
+   * @param sample number of sampled hits for counting facets
+   * @throws IOException I/O exception
+   */
+  private static void evaluate(final LuceneIndex[] sessions, final SearcherAndTaxonomy[] sts,
+      final TopDocs[] tops, final AtomicInteger next, final int limit, final boolean flag,
+      final int sample) throws IOException {
+    for(int d; (d = next.getAndIncrement()) < sessions.length;) {
+      tops[d] = sessions[d].top(sts[d], limit, flag, sample);
+    }
+  }
+
+  /**
+   * Facet counts of several databases, merged by their labels.
+   */
+  private static final class Merged extends Facets {
+    /**
+     * Facet counts of the databases.
+     */
+    private final Facets[] parts;
+
+    /**
+     * Constructor.
+     * @param parts facet counts of the databases
+     */
+    Merged(final Facets[] parts) {
+      this.parts = parts;
+    }
+
+    @Override
+    public FacetResult getTopChildren(final int topN, final String dim, final String... path)
+        throws IOException {
+      // all children are requested, as the top children of the sums may differ
+      final LinkedHashMap<String, Long> sums = new LinkedHashMap<>();
+      long value = -1;
+      boolean found = false;
+      for(final Facets part : parts) {
+        final FacetResult fr = part.getTopChildren(Integer.MAX_VALUE, dim, path);
+        if(fr == null) continue;
+        found = true;
+        if(fr.value.longValue() >= 0) value = Math.max(value, 0) + fr.value.longValue();
+        for(final LabelAndValue lv : fr.labelValues) {
+          final Long sum = sums.get(lv.label);
+          sums.put(lv.label, (sum == null ? 0 : sum) + lv.value.longValue());
+        }
+      }
+      if(!found) return null;
+
+      final ArrayList<LabelAndValue> list = new ArrayList<>();
+      for(final java.util.Map.Entry<String, Long> entry : sums.entrySet()) {
+        list.add(new LabelAndValue(entry.getKey(), entry.getValue()));
+      }
+      Collections.sort(list, ORDER);
+      final List<LabelAndValue> top = list.subList(0, Math.min(topN, list.size()));
+      return new FacetResult(dim, path, value, top.toArray(new LabelAndValue[top.size()]),
+          list.size());
+    }
+
+    @Override
+    public Number getSpecificValue(final String dim, final String... path) throws IOException {
+      long sum = 0;
+      for(final Facets part : parts) {
+        final long v = part.getSpecificValue(dim, path).longValue();
+        if(v > 0) sum += v;
+      }
+      return sum;
+    }
+
+    @Override
+    public List<FacetResult> getAllDims(final int topN) throws IOException {
+      final LinkedHashSet<String> dims = new LinkedHashSet<>();
+      for(final Facets part : parts) {
+        for(final FacetResult fr : part.getAllDims(1)) dims.add(fr.dim);
+      }
+      final ArrayList<FacetResult> results = new ArrayList<>();
+      for(final String dim : dims) {
+        final FacetResult fr = getTopChildren(topN, dim);
+        if(fr != null) results.add(fr);
+      }
+      Collections.sort(results, new Comparator<FacetResult>() {
+        @Override
+        public int compare(final FacetResult a, final FacetResult b) {
+          final int c = Long.compare(b.value.longValue(), a.value.longValue());
+          return c != 0 ? c : a.dim.compareTo(b.dim);
+        }
+      });
+      return results;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package org.basex.modules;
+
+import java.util.*;
+import java.util.regex.*;
+
+import org.apache.lucene.facet.*;
+import org.basex.query.*;
+
+/**
+ * Field-mapping rules of a schema-based index. Each rule maps an element
+ * pattern to a field, and the texts in the subtree of each matching element
+ * are additionally indexed in this field. A field can be addressed in queries
+ * by its name (e.g. {@code title:lucene}), which only searches the postings
+ * of the matching elements.
+ *
+ * A pattern is an element name ({@code title}), an absolute element path
+ * ({@code /lib/book/title}) or {@code *}, which matches all elements below
+ * the main element. If the field is {@code *}, the name of the matching
+ * element is used as field, with all characters other than letters, digits
+ * and underscores replaced by underscores. Reserved fields are skipped.
+ *
+ * @author Stephan
+ *
+ */
+final class LuceneFields {
+  /**
+   * Pattern for field names.
+   */
+  private static final Pattern FIELD = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+  /**
+   * Pattern for element patterns.
+   */
+  private static final Pattern PATH = Pattern.compile("\\*|/?[^/\\s*]+(/[^/\\s*]+)*");
+  /**
+   * Fields that are used by the index itself.
+   */
+  private static final List<String> RESERVED = Arrays.asList("text", "pre", LuceneIndex.ANC,
+      FacetsConfig.DEFAULT_INDEX_FIELD_NAME);
+
+  /**
+   * Fields, indexed by pattern.
+   */
+  private final TreeMap<String, String> rules;
+
+  /**
+   * Constructor.
+   * @param rules fields, indexed by pattern
+   */
+  private LuceneFields(final TreeMap<String, String> rules) {
+    this.rules = rules;
+  }
+
+  /**
+   * Constructor, validating the given rules.
+   * @param rules fields, indexed by pattern
+   * @throws QueryException query exception
+   */
+  LuceneFields(final java.util.Map<?, ?> rules) throws QueryException {
+    this(new TreeMap<String, String>());
+    for(final java.util.Map.Entry<?, ?> entry : rules.entrySet()) {
+      final String pattern = entry.getKey().toString(), field = entry.getValue().toString();
+      if(!PATH.matcher(pattern).matches()) {
+        throw new QueryException("Invalid element pattern: " + pattern);
+      }
+      if(!field.equals("*") && (!FIELD.matcher(field).matches() || RESERVED.contains(field))) {
+        throw new QueryException("Invalid field name: " + field);
+      }
+      this.rules.put(pattern, field);
+    }
+  }
+
+  /**
+   * Parses rules that have been stored with {@link #toString()}.
+   * @param rules stored rules (may be {@code null})
+   * @return rules, or {@code null}
+   */
+  static LuceneFields parse(final String rules) {
+    if(rules == null || rules.isEmpty()) return null;
+    final TreeMap<String, String> map = new TreeMap<>();
+    for(final String rule : rules.split("\n")) {
+      final int i = rule.indexOf('\t');
+      map.put(rule.substring(0, i), rule.substring(i + 1));
+    }
+    return new LuceneFields(map);
+  }
+
+  /**
+   * Adds the fields of an element to the given list.
+   * @param name name of the element
+   * @param path absolute path of the element
+   * @param inside element is a descendant of the main element
+   * @param fields list of fields
+   */
+  void match(final String name, final String path, final boolean inside,
+      final ArrayList<String> fields) {
+    add(rules.get(path), name, fields);
+    add(rules.get(name), name, fields);
+    if(inside) add(rules.get("*"), name, fields);
+  }
+
+  /**
+   * Adds a field to the given list.
+   * @param field field ({@code null} if no rule matches)
+   * @param name name of the element
+   * @param fields list of fields
+   */
+  private static void add(final String field, final String name,
+      final ArrayList<String> fields) {
+    if(field == null) return;
+    final String f = field.equals("*") ? name.replaceAll("[^A-Za-z0-9_]", "_") : field;
+    if(!RESERVED.contains(f) && !fields.contains(f)) fields.add(f);
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    for(final java.util.Map.Entry<String, String> rule : rules.entrySet()) {
+      if(sb.length() != 0) sb.append('\n');
+      sb.append(rule.getKey()).append('\t').append(rule.getValue());
+    }
+    return sb.toString();
+  }
+}
@@ -2,12 +2,15 @@ package org.basex.modules;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import org.apache.lucene.analysis.standard.*;
 import org.apache.lucene.document.*;
 import org.apache.lucene.facet.*;
 import org.apache.lucene.facet.DrillSideways.DrillSidewaysResult;
 import org.apache.lucene.facet.taxonomy.*;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager.SearcherAndTaxonomy;
 import org.apache.lucene.facet.taxonomy.directory.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.IndexWriterConfig.*;
@@ -17,7 +20,7 @@ import org.apache.lucene.store.*;
 import org.apache.lucene.util.Version;
 import org.basex.core.*;
 import org.basex.data.*;
-import org.basex.io.*;
+import org.basex.query.iter.*;
 import org.basex.query.value.node.*;
 import org.basex.util.Token;
 import org.basex.util.list.IntList;
@@ -35,6 +38,22 @@ public final class LuceneIndex {
    * Lucene Analyzer.
    */
   private static StandardAnalyzer analyzer = new StandardAnalyzer(Version.LUCENE_4_9);
+  /**
+   * Name of the field with the ids of the ancestors of an indexed node.
+   */
+  static final String ANC = "anc";
+  /**
+   * Commit data key of the main element of schema-based indexes.
+   */
+  static final String MAIN = "main";
+  /**
+   * Key of the index format in the commit data.
+   */
+  static final String FORMAT = "format";
+  /**
+   * Key of the field-mapping rules of schema-based indexes in the commit data.
+   */
+  static final String FIELDS = "fields";
   /**
    * Lucene Query.
    */
@@ -44,17 +63,13 @@ public final class LuceneIndex {
    */
   private DrillDownQuery q;
   /**
-   * ArrayList containing Lucene search results.
-   */
-  private ArrayList<Integer> resultContainer = new ArrayList<>();
-  /**
-   * HashMap containing all query Instances.
+   * Indicates if drill-down dimensions have been added to the query.
    */
-  private static HashMap<Integer, LuceneIndex> querysessions = new HashMap<>();
+  private boolean drilled;
   /**
-   * Total number of Query Sessions.
+   * Pre values of the Lucene search results.
    */
-  private static int NumberSessions = 1;
+  private int[] resultContainer = new int[0];
   /**
    * Data of current DB.
    */
@@ -67,33 +82,145 @@ public final class LuceneIndex {
    * Lucene facet result nodes.
    */
   private ANode[] nodes;
+  /**
+   * Facet counts of the last facet search, used to expand facet paths.
+   */
+  private Facets fcounts;
+  /**
+   * Searcher the facet counts have been computed with.
+   */
+  private IndexSearcher fsearcher;
+  /**
+   * Query the facet counts have been computed for.
+   */
+  private Query fquery;
+  /**
+   * Number of sampled hits the facet counts have been computed with.
+   */
+  private int fsample;
+  /**
+   * Statistics of the current database.
+   */
+  private LuceneStats stats;
+  /**
+   * Times of the phases of the last query (ns).
+   */
+  private final long[] timings = new long[LuceneStats.PHASES.length];
+  /**
+   * Last hit returned by {@link #getNext}, used as cursor for the next page.
+   */
+  private ScoreDoc after;
+  /**
+   * Maximum number of hits returned by a single search.
+   */
+  private static final int MAXHITS = 1000000;
+  /**
+   * Maximum number of threads evaluating a batch of queries.
+   */
+  static final int BATCHSIZE = Math.max(1, Integer.getInteger("lucene.batch.threads",
+      Runtime.getRuntime().availableProcessors()));
+  /**
+   * Threads evaluating batches of queries ({@code null} if batches are
+   * evaluated sequentially).
+   */
+  static final ExecutorService BATCH = BATCHSIZE < 2 ? null :
+    Executors.newFixedThreadPool(BATCHSIZE, new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, "lucene-batch");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  /**
+   * Time of the last access to this session.
+   */
+  private volatile long accessed = System.currentTimeMillis();
+  /**
+   * Estimated memory consumed by a facet result node.
+   */
+  private static final int NODESIZE = 96;
+
+  /**
+   * Constructor. New sessions are created via {@link LuceneSessions#open()}.
+   */
+  LuceneIndex() { }
 
   /**
-   * Constructor.
-   * @param key Integer
+   * Marks this session as accessed.
    */
-  public LuceneIndex(Integer key) {
-    NumberSessions++;
-    querysessions.put(key, this);
+  void touch() {
+    accessed = System.currentTimeMillis();
   }
 
   /**
-   * Get Query Session.
-   * @param id Session ID
-   * @return LuceneIndex
+   * Returns the time of the last access to this session.
+   * @return time in ms
    */
-  public static LuceneIndex getInstance(Integer id) {
-    return querysessions.get(id);
+  long accessed() {
+    return accessed;
   }
 
   /**
-   * Get next session ID.
-   * @return ID
+   * Returns the estimated memory consumed by the results of this session.
+   * @return memory in bytes
    */
-  public static int getID(){
-    return NumberSessions;
+  long memory() {
+    final ANode[] fnodes = nodes;
+    return 4L * resultContainer.length + (fnodes != null ? memory(fnodes) : 0);
   }
-  
+
+  /**
+   * Returns the estimated memory consumed by the given facet result nodes.
+   * @param fnodes facet result nodes
+   * @return memory in bytes
+   */
+  static long memory(final ANode[] fnodes) {
+    long mem = 0;
+    for(final ANode node : fnodes) {
+      mem += NODESIZE;
+      for(final AxisIter iter = node.descendant(); iter.next() != null;) mem += NODESIZE;
+    }
+    return mem;
+  }
+
+  /**
+   * Records the time of a query phase for this session and its database.
+   * @param phase phase
+   * @param start start time of the phase (ns)
+   * @return end time of the phase (ns)
+   */
+  long time(final int phase, final long start) {
+    final long end = System.nanoTime();
+    timings[phase] += end - start;
+    stats.time(phase, end - start);
+    return end;
+  }
+
+  /**
+   * Returns the phase times of the last query as XML.
+   * @param id session id
+   * @return query element
+   */
+  FElem timings(final int id) {
+    final FElem elem = new FElem("query").add("id", Integer.toString(id));
+    if(dbdata != null) elem.add("database", dbdata.meta.name);
+    for(int p = 0; p < timings.length; p++) {
+      if(timings[p] != 0) elem.add(new FElem("phase").add("name", LuceneStats.PHASES[p]).
+          add("ms", LuceneStats.ms(timings[p])));
+    }
+    return elem;
+  }
+
+  /**
+   * Starts the evaluation of the results and resets the phase times,
+   * except for the time spent on parsing the query.
+   */
+  private void begin() {
+    Arrays.fill(timings, LuceneStats.PARSE + 1, timings.length, 0);
+  }
+
   /**
    * Get Database data of this session.
    * @return Database data
@@ -110,6 +237,14 @@ public final class LuceneIndex {
 	return nodes;
   }
 
+  /**
+   * Get pre values of the last result of this session.
+   * @return pre values
+   */
+  public int[] getResult(){
+	return resultContainer;
+  }
+
 
   /**
    * Evaluates given Lucene Query and returns pre values
@@ -119,11 +254,16 @@ public final class LuceneIndex {
    * @throws Exception Exception
    */
   public void drilldown(final String dim, final String... drillDownField) throws Exception {
+	 after = null;
+	 drilled = true;
+	 counts(null, null, 0);
 	 if(drillDownField.length > 1){
 	   q.add(dim, drillDownField);
 	 }
 	 else{
-	   q.add(dim, new QueryParser(Version.LUCENE_4_9, "text", analyzer).parse(drillDownField[0]));
+	   long t = System.nanoTime();
+	   q.add(dim, LuceneQueries.parse(drillDownField[0], analyzer));
+	   time(LuceneStats.PARSE, t);
 	 }
   }
 
@@ -138,351 +278,987 @@ public final class LuceneIndex {
    */
   public void query(final String query, final Data data)
       throws ParseException, IOException {
+    final long t = System.nanoTime();
+    query(LuceneQueries.parse(query, analyzer), data, t);
+  }
+
+  /**
+   * Evaluates given Lucene Query and returns pre values of found XML Nodes
+   * that are contained in the given nodes.
+   * @param query Query
+   * @param data Data
+   * @param scope pre values of the nodes
+   * @throws ParseException Parse exception
+   * @throws IOException I/O exception
+   */
+  public void query(final String query, final Data data, final IntList scope)
+      throws ParseException, IOException {
+    final long t = System.nanoTime();
+    query(new FilteredQuery(LuceneQueries.parse(query, analyzer), new LuceneScope(data, scope)),
+        data, t);
+  }
+
+  /**
+   * Evaluates the given prepared Lucene Query with the given parameters
+   * and returns pre values of found XML Nodes.
+   * @param prepared prepared query
+   * @param params parameter values
+   * @param data Data
+   * @throws ParseException if a parameter is missing or unknown
+   * @throws IOException I/O exception
+   */
+  public void query(final LuceneQueries prepared, final Map<String, String> params,
+      final Data data) throws ParseException, IOException {
+    final long t = System.nanoTime();
+    query(prepared.bind(params), data, t);
+  }
+
+  /**
+   * Parses a Lucene Query with the analyzer of the index. The parsed query
+   * is cached for later searches.
+   * @param query query string
+   * @return parsed query
+   * @throws ParseException Parse exception
+   */
+  static Query parse(final String query) throws ParseException {
+    return LuceneQueries.parse(query, analyzer);
+  }
+
+  /**
+   * Prepares a Lucene Query template.
+   * @param template query template
+   * @return handle of the prepared query
+   * @throws ParseException Parse exception
+   */
+  public static int prepare(final String template) throws ParseException {
+    return LuceneQueries.prepare(template, analyzer);
+  }
 
+  /**
+   * Starts a new query.
+   * @param query parsed query
+   * @param data Data
+   * @param t start time of parsing (ns)
+   */
+  private void query(final Query query, final Data data, final long t) {
 	  dbdata = data;
+	  stats = LuceneStats.get(data);
+	  Arrays.fill(timings, 0);
+      time(LuceneStats.PARSE, t);
 
       FacetsConfig fconfig = new FacetsConfig();
-
-      baseQuery = new QueryParser(Version.LUCENE_4_9, "text", analyzer).parse(query);
+      baseQuery = query;
       q = new DrillDownQuery(fconfig, baseQuery);
+      after = null;
+      drilled = false;
+      counts(null, null, 0);
+  }
+
+  /**
+   * Get-Method for Lucene results of defined query.
+   * @param flag Facetflag
+   * @return pre values of the found XML nodes
+   * @throws IOException I/O exception
+   */
+  public int[] getResults(final Boolean flag) throws IOException {
+    return getResults(flag, new LuceneFacetOptions());
   }
 
   /**
    * Get-Method for Lucene results of defined query.
    * @param flag Facetflag
-   * @return ArrayList containing Lucene search results.
+   * @param fopts facet options
+   * @return pre values of the found XML nodes
+   * @throws IOException I/O exception
+   */
+  public int[] getResults(final Boolean flag, final LuceneFacetOptions fopts)
+      throws IOException {
+    begin();
+    final long t = System.nanoTime();
+    final SearcherAndTaxonomy st = LuceneReaders.acquire(dbdata);
+    try {
+      return getResults(flag, fopts, st, time(LuceneStats.ACQUIRE, t));
+    } finally {
+      LuceneReaders.release(st);
+    }
+  }
+
+  /**
+   * Evaluates the given queries on the same searcher. The queries are
+   * distributed to the calling thread and up to {@code threads - 1}
+   * additional threads.
+   * @param data Data
+   * @param queries queries
+   * @param flag Facetflag
+   * @param fopts facet options
+   * @param threads maximum number of threads
+   * @return sessions with the results of the queries
+   * @throws ParseException Parse exception
+   * @throws IOException I/O exception
+   */
+  public static LuceneIndex[] batch(final Data data, final String[] queries,
+      final boolean flag, final LuceneFacetOptions fopts, final int threads)
+      throws ParseException, IOException {
+    final LuceneIndex[] sessions = new LuceneIndex[queries.length];
+    for(int i = 0; i < queries.length; i++) {
+      sessions[i] = new LuceneIndex();
+      sessions[i].query(queries[i], data);
+      sessions[i].begin();
+    }
+
+    final long t = System.nanoTime();
+    final SearcherAndTaxonomy st = LuceneReaders.acquire(data);
+    if(queries.length > 0) sessions[0].time(LuceneStats.ACQUIRE, t);
+    try {
+      final AtomicInteger next = new AtomicInteger();
+      final int size = BATCH == null ? 0 : Math.min(Math.min(threads, BATCHSIZE),
+          sessions.length) - 1;
+      final ArrayList<Future<Void>> futures = new ArrayList<>();
+      for(int f = 0; f < size; f++) {
+        futures.add(BATCH.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            evaluate(sessions, next, flag, fopts, st);
+            return null;
+          }
+        }));
+      }
+      try {
+        evaluate(sessions, next, flag, fopts, st);
+        for(final Future<Void> future : futures) future.get();
+      } catch(final InterruptedException ex) {
+        throw new InterruptedIOException(ex.getMessage());
+      } catch(final ExecutionException ex) {
+        final Throwable cause = ex.getCause();
+        if(cause instanceof IOException) throw (IOException) cause;
+        if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+        throw new IOException(cause);
+      } finally {
+        for(final Future<Void> future : futures) future.cancel(true);
+      }
+    } finally {
+      LuceneReaders.release(st);
+    }
+    return sessions;
+  }
+
+  /**
+   * Returns the Lucene results of the defined query in document order.
+   * The hits are neither scored nor ranked: the node ids of all matching
+   * documents are collected while the index is traversed, and the
+   * resulting pre values are sorted.
+   * @return pre values of the found XML nodes, in document order
+   * @throws IOException I/O exception
+   */
+  public int[] getOrderedResults() throws IOException {
+    begin();
+    long t = System.nanoTime();
+    final SearcherAndTaxonomy st = LuceneReaders.acquire(dbdata);
+    t = time(LuceneStats.ACQUIRE, t);
+    try {
+      final String key = LuceneCache.key(dbdata, st, "ordered", q);
+      final int[] cids = (int[]) LuceneCache.get(key);
+      if(key != null) stats.cache(cids != null);
+      if(cids != null) {
+        resultContainer = ordered(cids);
+        stats.query(resultContainer.length);
+        return resultContainer;
+      }
+
+      final IntList ids = new IntList();
+      st.searcher.search(new ConstantScoreQuery(q), new Collector() {
+        /** Segment reader. */
+        private AtomicReader reader;
+        /** Node ids of the segment. */
+        private NumericDocValues values;
+
+        @Override
+        public void setScorer(final Scorer scorer) { }
+
+        @Override
+        public void setNextReader(final AtomicReaderContext context) throws IOException {
+          reader = context.reader();
+          values = reader.getNumericDocValues("pre");
+        }
+
+        @Override
+        public void collect(final int doc) throws IOException {
+          ids.add(values != null ? (int) values.get(doc) :
+            reader.document(doc).getField("pre").numericValue().intValue());
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+          return true;
+        }
+      });
+      t = time(LuceneStats.SEARCH, t);
+
+      // several documents may refer to the same node
+      final int size = ids.size();
+      ids.sort();
+      final IntList unique = new IntList(size);
+      for(int i = 0; i < size; i++) {
+        final int id = ids.get(i);
+        if(i == 0 || id != ids.get(i - 1)) unique.add(id);
+      }
+      final int[] uids = unique.finish();
+      LuceneCache.put(key, uids, 4L * uids.length);
+      resultContainer = ordered(uids);
+      stats.query(resultContainer.length);
+      return resultContainer;
+    } finally {
+      LuceneReaders.release(st);
+    }
+  }
+
+  /**
+   * Maps distinct node ids to pre values in document order. The pre values
+   * are computed again for each call, as they change when the database is updated.
+   * @param ids distinct node ids
+   * @return sorted pre values
+   */
+  private int[] ordered(final int[] ids) {
+    final int[] pres = pres(ids);
+    Arrays.sort(pres);
+    return pres;
+  }
+
+  /**
+   * Evaluates the queries of a batch until all of them have been taken.
+   * @param sessions sessions with the queries
+   * @param next index of the next query
+   * @param flag Facetflag
+   * @param fopts facet options
+   * @param st searcher and taxonomy reader
+   * @throws IOException I/O exception
+   */
+  private static void evaluate(final LuceneIndex[] sessions, final AtomicInteger next,
+      final boolean flag, final LuceneFacetOptions fopts, final SearcherAndTaxonomy st)
+      throws IOException {
+    for(int i; (i = next.getAndIncrement()) < sessions.length;) {
+      sessions[i].getResults(flag, fopts, st, System.nanoTime());
+    }
+  }
+
+  /**
+   * Evaluates the defined query on the given searcher.
+   * @param flag Facetflag
+   * @param fopts facet options
+   * @param st searcher and taxonomy reader
+   * @param start start time (ns)
+   * @return pre values of the found XML nodes
    * @throws IOException I/O exception
    */
-  public ArrayList<Integer> getResults(final Boolean flag) throws IOException {
-	IOFile indexpath = dbdata.meta.path;
-	IndexReader reader = DirectoryReader.open(FSDirectory.open(
-	  new File(indexpath.toString() + "/" + "LuceneIndex")));
-	IndexSearcher searcher = new IndexSearcher(reader);
-	TaxonomyReader taxoReader = new DirectoryTaxonomyReader(FSDirectory.open(
-	  new File(indexpath.toString() + "/" + "LuceneIndex-taxo")));  
-	 
-	try{
-	  FacetsCollector facetCollector = new FacetsCollector();
-	  ScoreDoc[] hits = null;
-
-	  hits = FacetsCollector.search(searcher, q, 1000000, facetCollector).scoreDocs;
-	  
-	  FacetsConfig fconfig = new FacetsConfig();
-	  
-	  DrillSideways ds = new DrillSideways(searcher, fconfig, taxoReader);
-	  dsResult = ds.search(q, 10);
-	  
-	  ArrayList<Integer> pres = new ArrayList<>();
-	    for(int i = 0; i < hits.length; ++i) {
-	      int docId = hits[i].doc;
-	      Document d = searcher.doc(docId);
-	      Number a = d.getField("pre").numericValue();
-	      pres.add(dbdata.pre((Integer) a));
-	    }
-	      
-	  resultContainer = pres;
-	  
-	  if(flag == true) {
-	    Facets ftext = dsResult.facets;
-	    ArrayList<ANode> fnodes = new ArrayList<>();
-	    
-	    List<FacetResult> fResult = ftext.getAllDims(Integer.MAX_VALUE);
-		int flength = fResult.size();
-		
-	    for(int i = 0; i < flength; i++) {
-	    fnodes = LuceneIndex.elems(fResult, ftext);
-	    }
-		
-	    nodes = new ANode[fnodes.size()];
-	    fnodes.toArray(nodes);
-	  }
-
-	} finally {
-	    reader.close();
-	    taxoReader.close();
-	}
-	  
+  private int[] getResults(final boolean flag, final LuceneFacetOptions fopts,
+      final SearcherAndTaxonomy st, final long start) throws IOException {
+    long t = start;
+    final String hkey = LuceneCache.key(dbdata, st, "hits", q);
+    final String fkey = flag ? LuceneCache.key(dbdata, st, "facets/" + fopts, q) : null;
+    final Object[] cached = LuceneCache.getAll(flag ? new String[] { hkey, fkey } :
+      new String[] { hkey });
+    if(hkey != null) stats.cache(cached != null);
+    if(cached != null) {
+      // the facet counts of this query have not been computed by this session
+      if(flag) nodes = (ANode[]) cached[1];
+      counts(null, null, 0);
+      resultContainer = pres((int[]) cached[0]);
+      stats.query(resultContainer.length);
+      return resultContainer;
+    }
+
+    final IndexSearcher searcher = st.searcher;
+    final int n = Math.max(1, Math.min(MAXHITS, searcher.getIndexReader().maxDoc()));
+    final ScoreDoc[] hits;
+
+    if(flag) {
+      // hits and facet counts are collected in the same traversal
+      FacetsConfig fconfig = facetsConfig(st);
+      dsResult = facets(st, fconfig, n, fopts.sample);
+      t = time(LuceneStats.SIDEWAYS, t);
+      hits = dsResult.hits.scoreDocs;
+      counts(dsResult.facets, searcher, fopts.sample);
+
+      ArrayList<ANode> fnodes = LuceneIndex.elems(fcounts, fopts);
+
+      nodes = new ANode[fnodes.size()];
+      fnodes.toArray(nodes);
+      time(LuceneStats.FACETS, t);
+      LuceneCache.put(fkey, nodes, memory(nodes));
+    } else {
+      hits = searcher.search(q, n).scoreDocs;
+      time(LuceneStats.SEARCH, t);
+    }
+
+    final int[] hids = ids(searcher, hits, 0);
+    LuceneCache.put(hkey, hids, 4L * hids.length);
+    resultContainer = pres(hids);
+    stats.query(resultContainer.length);
     return resultContainer;
   }
 
+  /**
+   * Returns the top hits of the defined query on the given searcher, so that
+   * they can be merged with the hits of other databases. The pre values of
+   * the hits become the result of this session; with the facet flag, the
+   * facet counts are kept as well.
+   * @param st searcher and taxonomy reader
+   * @param n maximum number of hits
+   * @param flag Facetflag
+   * @param sample number of sampled hits for counting facets ({@code 0}: count all hits)
+   * @return hits
+   * @throws IOException I/O exception
+   */
+  TopDocs top(final SearcherAndTaxonomy st, final int n, final boolean flag, final int sample)
+      throws IOException {
+    begin();
+    long t = System.nanoTime();
+    final IndexSearcher searcher = st.searcher;
+    final TopDocs hits;
+    if(flag) {
+      dsResult = facets(st, facetsConfig(st), n, sample);
+      time(LuceneStats.SIDEWAYS, t);
+      hits = dsResult.hits;
+      counts(dsResult.facets, searcher, sample);
+    } else {
+      hits = searcher.search(q, n);
+      time(LuceneStats.SEARCH, t);
+    }
+    resultContainer = pres(searcher, hits.scoreDocs, 0);
+    stats.query(resultContainer.length);
+    return hits;
+  }
+
+  /**
+   * Returns the facet counts of the last search of this session.
+   * @return facet counts (may be {@code null})
+   */
+  Facets counts() {
+    return fcounts;
+  }
+
+  /**
+   * Remembers the facet counts of the defined query, so that facet paths can
+   * be expanded without searching again.
+   * @param counts facet counts ({@code null}: discard the last counts)
+   * @param searcher searcher the counts have been computed with
+   * @param sample number of sampled hits the counts have been computed with
+   */
+  private void counts(final Facets counts, final IndexSearcher searcher, final int sample) {
+    fcounts = counts;
+    fsearcher = searcher;
+    fquery = counts != null ? q : null;
+    fsample = sample;
+  }
+
+  /**
+   * Collects the hits and facet counts of the defined query. Without
+   * drill-down dimensions, the index segments are searched in parallel.
+   * @param st searcher and taxonomy reader
+   * @param fconfig facets configuration
+   * @param n maximum number of hits
+   * @param sample number of sampled hits ({@code 0}: count all hits; ignored
+   * for drill-sideways searches)
+   * @return hits and facet counts
+   * @throws IOException I/O exception
+   */
+  private DrillSidewaysResult facets(final SearcherAndTaxonomy st, final FacetsConfig fconfig,
+      final int n, final int sample) throws IOException {
+    if(!drilled) {
+      return ((LuceneSearcher) st.searcher).searchFacets(q, n, st.taxonomyReader, fconfig,
+          sample);
+    }
+    return new DrillSideways(st.searcher, fconfig, st.taxonomyReader).search(q, n);
+  }
+
+  /**
+   * Returns the top children of the given facet path for the defined query.
+   * The facet counts of the last facet search are reused if the index has
+   * not changed in the meantime.
+   * @param dim dimension
+   * @param path path below the dimension
+   * @param fopts facet options
+   * @return entries
+   * @throws IOException I/O exception
+   */
+  public ANode[] facetChildren(final String dim, final String[] path,
+      final LuceneFacetOptions fopts) throws IOException {
+    begin();
+    long t = System.nanoTime();
+    final SearcherAndTaxonomy st = LuceneReaders.acquire(dbdata);
+    t = time(LuceneStats.ACQUIRE, t);
+    try {
+      if(fcounts == null || fsearcher != st.searcher || fquery != q ||
+          fsample != fopts.sample) {
+        FacetsConfig fconfig = facetsConfig(st);
+        counts(facets(st, fconfig, 1, fopts.sample).facets, st.searcher, fopts.sample);
+        t = time(LuceneStats.SIDEWAYS, t);
+      }
+
+      FElem elem = new FElem("entries");
+      subElems(elem, fcounts, dim, fopts.depth, fopts.top, path);
+      time(LuceneStats.FACETS, t);
+      ArrayList<ANode> entries = new ArrayList<>();
+      for(final AxisIter iter = elem.children();;) {
+        final ANode node = iter.next();
+        if(node == null) break;
+        entries.add(node);
+      }
+      return entries.toArray(new ANode[entries.size()]);
+    } finally {
+      LuceneReaders.release(st);
+    }
+  }
+
+  /**
+   * Returns a page of the Lucene results of the defined query.
+   * Only the hits up to the end of the page are ranked.
+   * @param offset number of hits to skip
+   * @param limit maximum number of hits to return
+   * @return pre values of the found XML nodes
+   * @throws IOException I/O exception
+   */
+  public int[] getResults(final int offset, final int limit)
+      throws IOException {
+    begin();
+    long t = System.nanoTime();
+    final SearcherAndTaxonomy st = LuceneReaders.acquire(dbdata);
+    t = time(LuceneStats.ACQUIRE, t);
+    try {
+      final IndexSearcher searcher = st.searcher;
+      final int n = (int) Math.min((long) offset + limit, MAXHITS);
+      if(offset < 0 || limit <= 0 || n <= offset) return new int[0];
+
+      final ScoreDoc[] hits = searcher.search(q, n).scoreDocs;
+      time(LuceneStats.SEARCH, t);
+      if(hits.length > offset) after = hits[hits.length - 1];
+      final int[] pres = pres(searcher, hits, offset);
+      stats.query(pres.length);
+      return pres;
+    } finally {
+      LuceneReaders.release(st);
+    }
+  }
+
+  /**
+   * Returns the next page of the Lucene results of the defined query,
+   * starting after the last hit returned by the previous call.
+   * @param limit maximum number of hits to return
+   * @return pre values of the found XML nodes
+   * @throws IOException I/O exception
+   */
+  public int[] getNext(final int limit) throws IOException {
+    begin();
+    long t = System.nanoTime();
+    final SearcherAndTaxonomy st = LuceneReaders.acquire(dbdata);
+    t = time(LuceneStats.ACQUIRE, t);
+    try {
+      final IndexSearcher searcher = st.searcher;
+      if(limit <= 0) return new int[0];
+
+      final ScoreDoc[] hits = searcher.searchAfter(after, q, limit).scoreDocs;
+      time(LuceneStats.SEARCH, t);
+      if(hits.length > 0) after = hits[hits.length - 1];
+      final int[] pres = pres(searcher, hits, 0);
+      stats.query(pres.length);
+      return pres;
+    } finally {
+      LuceneReaders.release(st);
+    }
+  }
+
+  /**
+   * Resolves the pre values of the given hits.
+   * @param searcher index searcher
+   * @param hits hits
+   * @param offset index of the first hit to resolve
+   * @return pre values
+   * @throws IOException I/O exception
+   */
+  private int[] pres(final IndexSearcher searcher, final ScoreDoc[] hits,
+      final int offset) throws IOException {
+    return pres(ids(searcher, hits, offset));
+  }
+
+  /**
+   * Maps node ids to pre values.
+   * @param ids node ids
+   * @return pre values
+   */
+  private int[] pres(final int[] ids) {
+    final long t = System.nanoTime();
+    final int[] pres = new int[ids.length];
+    for(int i = 0; i < ids.length; i++) pres[i] = dbdata.pre(ids[i]);
+    time(LuceneStats.PRES, t);
+    return pres;
+  }
+
+  /**
+   * Returns the node ids of the given hits. The ids are read from the doc
+   * values of the index segments, visited in document order; the hit order
+   * is preserved.
+   * @param searcher index searcher
+   * @param hits hits
+   * @param offset index of the first hit to resolve
+   * @return node ids
+   * @throws IOException I/O exception
+   */
+  private int[] ids(final IndexSearcher searcher, final ScoreDoc[] hits,
+      final int offset) throws IOException {
+    final long t = System.nanoTime();
+    final int n = Math.max(0, hits.length - offset);
+    // sort hit positions by document id
+    final long[] order = new long[n];
+    for(int i = 0; i < n; i++) order[i] = (long) hits[offset + i].doc << 32 | i;
+    Arrays.sort(order);
+
+    final int[] result = new int[n];
+    final List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+    int l = -1, end = 0, base = 0;
+    AtomicReader reader = null;
+    NumericDocValues values = null;
+    for(final long o : order) {
+      final int doc = (int) (o >>> 32);
+      while(doc >= end) {
+        final AtomicReaderContext leaf = leaves.get(++l);
+        reader = leaf.reader();
+        base = leaf.docBase;
+        end = base + reader.maxDoc();
+        values = reader.getNumericDocValues("pre");
+      }
+      result[(int) o] = values != null ? (int) values.get(doc - base) :
+        reader.document(doc - base).getField("pre").numericValue().intValue();
+    }
+    time(LuceneStats.IDS, t);
+    return result;
+  }
+
   /**
    * Builds luceneIndex of current database context.
    * @param context database context
    * @throws Exception exception
    */
   public static void luceneIndex(final Context context) throws Exception {
-    IOFile indexpath = context.globalopts.dbpath();
-    String dbname = context.data().meta.name;
+    luceneIndex(context.data(), new LuceneOptions());
+  }
 
-    File indexFile = new File(indexpath.toString() + "/" + dbname + "/" + "LuceneIndex");
-    System.out.println(indexpath.toString() + "/" + dbname + "/" + "LuceneIndex");
-    File taxoIndexFile = new File(indexpath.toString() + "/" + dbname + "/" + "LuceneIndex-taxo");
-    
+  /**
+   * Builds luceneIndex of the given database. The database is walked by the
+   * calling thread, while the documents are built and added by the workers of
+   * a {@link LuceneBuilder}.
+   * @param data database data
+   * @param options build options
+   * @throws IOException I/O exception
+   */
+  public static void luceneIndex(final Data data, final LuceneOptions options)
+      throws IOException {
+    File indexFile = LuceneDirectory.index(data);
+
+    // cached readers and writers refer to the index that is replaced
+    LuceneReaders.close(data);
+    LuceneWriter.close(data.meta.path.toString());
     indexFile.mkdir();
 
+    FacetsConfig fconfig = textConfig();
+
+    Directory index = LuceneDirectory.open(data, false, true);
+    Directory taxoIndex = LuceneDirectory.open(data, true, true);
+    IndexWriterConfig config = options.config(analyzer).setOpenMode(OpenMode.CREATE);
+    IndexWriter writer = new IndexWriter(index, config);
+    DirectoryTaxonomyWriter taxoWriter = new DirectoryTaxonomyWriter(taxoIndex, OpenMode.CREATE);
+    LuceneBuilder builder = new LuceneBuilder(writer, taxoWriter, fconfig, options,
+        LuceneStats.get(data));
+
+    try {
+      HashMap<String, String> commitData = new HashMap<>();
+      commitData.put(FORMAT, options.format);
+      writer.setCommitData(commitData);
+      textDocs(data, 0, data.meta.size, builder, LuceneOptions.store(options.format));
+      builder.finish(true);
+    } finally {
+      builder.abort();
+      writer.close();
+      taxoWriter.close();
+    }
+  }
+
+  /**
+   * Returns the facets configuration for indexes with one document per text node.
+   * @return facets configuration
+   */
+  private static FacetsConfig textConfig() {
     FacetsConfig fconfig = new FacetsConfig();
     fconfig.setHierarchical("text", true);
     fconfig.setHierarchical("att", true);
+    return fconfig;
+  }
+
+  /**
+   * Returns the facets configuration for counting the facets of the given index.
+   * The counts of hierarchical dimensions are only aggregated along their
+   * paths if they are configured the same way as during indexing.
+   * @param st searcher and taxonomy reader
+   * @return facets configuration
+   * @throws IOException I/O exception
+   */
+  static FacetsConfig facetsConfig(final SearcherAndTaxonomy st) throws IOException {
+    final DirectoryReader reader = (DirectoryReader) st.searcher.getIndexReader();
+    return reader.getIndexCommit().getUserData().containsKey(MAIN) ?
+        new FacetsConfig() : textConfig();
+  }
 
-    Directory index = FSDirectory.open(indexFile);
-    Directory taxoIndex = FSDirectory.open(taxoIndexFile);
-    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_9, analyzer);
+  /**
+   * Creates one document for each text node in the given range.
+   * @param data database data
+   * @param root pre value of the first node
+   * @param size pre value after the last node
+   * @param builder builder
+   * @param store store texts and node ids
+   * @throws IOException I/O exception
+   */
+  private static void textDocs(final Data data, final int root, final int size,
+      final LuceneBuilder builder, final Field.Store store) throws IOException {
+
+    // stacks with parent pres, ids, names and number of attributes of the open elements
+    IntList pres = new IntList();
+    IntList ids = new IntList();
+    TokenList names = new TokenList();
+    IntList atts = new IntList();
+    TokenList att = new TokenList();
+    int docid = -1;
+
+    // ancestors of the root node
+    IntList anc = new IntList();
+    for(int p = data.parent(root, data.kind(root)); p >= 0; p = data.parent(p, data.kind(p))) {
+      anc.add(p);
+    }
+    for(int a = anc.size() - 1; a >= 0; a--) {
+      int p = anc.get(a), kind = data.kind(p);
+      if(kind == Data.DOC) {
+        docid = data.id(p);
+      } else {
+        pres.push(data.parent(p, kind));
+        ids.push(data.id(p));
+        names.add(data.name(p, kind));
+        int as = data.attSize(p, kind);
+        for(int i = 1; i < as; i++) att.add(data.name(p + i, Data.ATTR));
+        atts.push(as - 1);
+      }
+    }
+
+    for(int pre = root; pre < size; pre++) {
+      int kind = data.kind(pre);
+      int par = data.parent(pre, kind);
+
+      while(!pres.isEmpty() && pres.peek() >= par) {
+        pres.pop();
+        ids.pop();
+        names.pop();
+        for(int a = atts.pop(); a > 0; a--) att.pop();
+      }
+
+      if(kind == Data.DOC) {
+        docid = data.id(pre);
+      } else if(kind == Data.ELEM) {
+        pres.push(par);
+        ids.push(data.id(pre));
+        names.add(data.name(pre, kind));
+        atts.push(0);
+      } else if(kind == Data.ATTR) {
+        att.add(data.name(pre, Data.ATTR));
+        atts.push(atts.pop() + 1);
+      } else if(kind == Data.TEXT) {
+        int parid = data.id(par);
+        final byte[] text = data.text(pre, true);
+
+        Document doc = new Document();
+
+        doc.add(new IntField("pre", parid, store));
+        doc.add(new NumericDocValuesField("pre", parid));
+        if(docid != -1 && docid != parid) doc.add(new StringField(ANC, Integer.toString(docid), Field.Store.NO));
+        for(int i = 0; i < ids.size() - 1; i++) doc.add(new StringField(ANC, Integer.toString(ids.get(i)), Field.Store.NO));
+        doc.add(new TextField("text", Token.string(text), store));
+        doc.add(new FacetField("text", names.toStringArray()));
+        if(att.size() > 0) {
+          doc.add(new FacetField("att", att.toStringArray()));
+        }
+
+        builder.add(doc);
+      }
+    }
+  }
+
+  /**
+   * Returns the default options of schema-based builds, which add the
+   * documents in a single thread and merge the index to five segments.
+   * @return options
+   */
+  public static LuceneOptions schemaOptions() {
+    LuceneOptions options = new LuceneOptions();
+    options.threads = 1;
+    options.merge = 5;
+    options.progress = 0;
+    return options;
+  }
+
+  /**
+   * Builds luceneIndex of current database context with specific schema.
+   * @param data database data
+   * @param mainEle main element
+   * @throws Exception exception
+   */
+  public static void luceneIndexSchema(final Data data, final String mainEle)
+      throws Exception {
+    luceneIndexSchema(data, mainEle, schemaOptions());
+  }
+
+  /**
+   * Builds luceneIndex of current database context with specific schema,
+   * using the given build options.
+   * @param data database data
+   * @param mainEle main element
+   * @param options build options (see {@link #schemaOptions()})
+   * @throws Exception exception
+   */
+  public static void luceneIndexSchema(final Data data, final String mainEle,
+      final LuceneOptions options) throws Exception {
+    File indexFile = LuceneDirectory.index(data);
+    File taxoIndexFile = LuceneDirectory.taxonomy(data);
+
+    // cached readers and writers refer to the index that is replaced
+    LuceneReaders.close(data);
+    LuceneWriter.close(data.meta.path.toString());
+    indexFile.delete();
+    taxoIndexFile.delete();
+    indexFile.mkdir();
+    taxoIndexFile.mkdir();
+
+    FacetsConfig fconfig = new FacetsConfig();
+
+    Directory index = LuceneDirectory.open(data, false, true);
+    Directory taxoIndex = LuceneDirectory.open(data, true, true);
+    IndexWriterConfig config = options.config(analyzer).setOpenMode(OpenMode.CREATE);
     IndexWriter writer = new IndexWriter(index, config);
     DirectoryTaxonomyWriter taxoWriter = new DirectoryTaxonomyWriter(taxoIndex, OpenMode.CREATE);
+    LuceneBuilder builder = new LuceneBuilder(writer, taxoWriter, fconfig, options,
+        LuceneStats.get(data));
 
     try {
-      Data data = context.data();
-      int size = data.meta.size;
-
-      IntList pres = new IntList();
-      TokenList names = new TokenList();
-      TokenList att = new TokenList();
-      System.out.println(size);
-      
-      for(int pre = 0; pre < size; pre++) {
-        int kind = data.kind(pre);
-        int par = data.parent(pre, kind);
-
-        while(!pres.isEmpty() && pres.peek() >= par) {
-          pres.pop();
-          names.pop();
-          if(!att.isEmpty()){
-        	  att.pop();
-          }
-        }
-        
-        if(kind == Data.ELEM) {
-          pres.push(par);
-          names.add(data.name(pre, kind));
-        } else if(kind == Data.ATTR) {
-          att.add(data.name(pre, Data.ATTR));
-        } else if(kind == Data.TEXT) {
-          int parid = data.id(par);
-          final byte[] text = data.text(pre, true);
-        
-          Document doc = new Document();
-          
-          doc.add(new IntField("pre", parid, Field.Store.YES));
-          doc.add(new TextField("text", Token.string(text), Field.Store.YES));
-          doc.add(new FacetField("text", names.toStringArray()));
-          if(att.size() > 0) {
-            doc.add(new FacetField("att", att.toStringArray()));
+      HashMap<String, String> commitData = new HashMap<>();
+      commitData.put(MAIN, mainEle);
+      commitData.put(FORMAT, options.format);
+      if(options.fields != null) commitData.put(FIELDS, options.fields.toString());
+      writer.setCommitData(commitData);
+      new LuceneSchema(data, mainEle, fconfig, builder, LuceneOptions.store(options.format),
+          options.fields).index(0, data.meta.size);
+      builder.finish(true);
+    } finally {
+      builder.abort();
+      writer.close();
+      taxoWriter.close();
+    }
+  }
+
+  /**
+   * Updates the index of the given database after the given nodes have been
+   * inserted or changed. For each node, the documents of the smallest indexed
+   * unit containing the node (its parent element or its main element)
+   * are deleted and created again, along with their taxonomy entries.
+   * If nodes have been deleted, their parent must be specified.
+   * @param data database data
+   * @param nodes pre values of the changed nodes
+   * @throws IOException I/O exception
+   */
+  public static void update(final Data data, final IntList nodes) throws IOException {
+    LuceneWriter lw = LuceneWriter.get(data);
+    IndexWriter writer = lw.writer;
+    DirectoryTaxonomyWriter taxoWriter = lw.taxoWriter;
+
+    LuceneOptions options = new LuceneOptions();
+    options.threads = 1;
+    // incremental updates never force a merge
+    options.merge = 0;
+    options.progress = 0;
+
+    String mainEle = writer.getCommitData().get(MAIN);
+    Field.Store store = LuceneOptions.store(writer.getCommitData().get(FORMAT));
+    LuceneFields fields = LuceneFields.parse(writer.getCommitData().get(FIELDS));
+    FacetsConfig fconfig = mainEle == null ? textConfig() : new FacetsConfig();
+    LuceneBuilder builder = new LuceneBuilder(writer, taxoWriter, fconfig, options,
+        LuceneStats.get(data));
+    LuceneSchema schema = mainEle == null ? null :
+      new LuceneSchema(data, mainEle, fconfig, builder, store, fields);
+
+    try {
+      // roots of the subtrees to be reindexed, in document order
+      IntList roots = new IntList();
+      for(int n = 0; n < nodes.size(); n++) {
+        int pre = nodes.get(n), kind = data.kind(pre);
+        if(schema == null) {
+          if(kind != Data.ELEM && kind != Data.DOC) pre = data.parent(pre, kind);
+        } else {
+          for(int p = pre; p >= 0; p = data.parent(p, data.kind(p))) {
+            if(schema.isMain(p)) pre = p;
           }
-        
-          writer.addDocument(fconfig.build(taxoWriter, doc));
         }
+        roots.add(pre);
       }
+      roots.sort();
 
-      writer.forceMerge(5);
-      writer.commit();
-      taxoWriter.commit();
+      int end = -1;
+      for(int r = 0; r < roots.size(); r++) {
+        int root = roots.get(r);
+        // skip nodes in the subtree of the last root
+        if(root < end) continue;
+        end = root + data.size(root, data.kind(root));
 
+        delete(writer, data.id(root));
+        if(schema == null) {
+          textDocs(data, root, end, builder, store);
+        } else {
+          schema.index(root, end);
+        }
+      }
+      builder.finish(false);
     } finally {
-      writer.close();
-      taxoWriter.close();
+      builder.abort();
     }
   }
 
   /**
-   * Builds luceneIndex of current database context with specific schema.
-   * @param context database context
-   * @param data database data 
-   * @param dbname database name
-   * @param mainElem main element
-   * @throws Exception exception
+   * Removes the documents of the deleted nodes with the given ids and their
+   * descendants from the index of the given database.
+   * @param data database data
+   * @param ids ids of the deleted nodes
+   * @throws IOException I/O exception
+   */
+  public static void delete(final Data data, final IntList ids) throws IOException {
+    IndexWriter writer = LuceneWriter.get(data).writer;
+    for(int i = 0; i < ids.size(); i++) delete(writer, ids.get(i));
+    writer.commit();
+  }
+
+  /**
+   * Deletes the documents of the node with the given id and its descendants.
+   * @param writer index writer
+   * @param id node id
+   * @throws IOException I/O exception
    */
-  public static void luceneIndexSchema(final Context context,final Data data,final String dbname, final String mainEle) throws Exception {
-	    IOFile indexpath = context.globalopts.dbpath();
-	  
-	    File indexFile = new File(indexpath.toString() + "/" + dbname + "/" + "LuceneIndex");
-	    File taxoIndexFile = new File(indexpath.toString() + "/" + dbname + "/" + "LuceneIndex-taxo");
-	    
-	    indexFile.delete();
-	    taxoIndexFile.delete();
-	    indexFile.mkdir();
-	    taxoIndexFile.mkdir();
-
-	    FacetsConfig fconfig = new FacetsConfig();
-
-	    Directory index = FSDirectory.open(indexFile);
-	    Directory taxoIndex = FSDirectory.open(taxoIndexFile);
-	    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_9, analyzer);
-	    IndexWriter writer = new IndexWriter(index, config);
-	    DirectoryTaxonomyWriter taxoWriter = new DirectoryTaxonomyWriter(taxoIndex, OpenMode.CREATE);
-
-	    try {
-	      int size = data.meta.size;
-	      System.out.println("size:" + size);
-	      
-	      for(int pre = 0; pre < size; pre++) {
-	        //int kind = data.kind(pre);
-	        //int par = data.parent(pre, kind);
-	        
-	        
-	        if(data.kind(pre) == Data.ELEM){
-	       
-	        if(Token.string(data.name(pre, Data.ELEM)).equals(mainEle)) {
-	          System.out.println(true);
-	          int tsize = data.size(pre, Data.ELEM);
-	          Document doc = new Document();
-	          doc.add(new IntField("pre", data.id(pre), Field.Store.YES));
-	          
-	          
-	          for(int i = pre+1; i < pre+tsize; i++){
-	        	if(pre < size){
-	        	int csize = data.size(i, Data.ELEM);
-	        	System.out.println("csize:" + csize);
-	        	int ckind = data.kind(i);
-		        int cpar = data.parent(i, ckind);  
-	        	
-		  
-	        	if(data.kind(i) == Data.ELEM && csize > 2){
-	        	  ArrayList<String> patharray = new ArrayList<>();
-	        	  System.out.println("deep" + Token.string(data.name(i, Data.ELEM)));
-	        		
-	        	  for(int j = i; j < i+csize; j++){
-	        		int cckind = data.kind(j);
-			        //int ccpar = data.parent(j, ckind);  
-	        		
-			        if(cckind == Data.TEXT){
-			          final byte[] text = data.text(j, true);
-			          patharray.add(Token.string(text));
-	        		
-			          doc.add(new TextField("text", Token.string(text), Field.Store.YES));
-			        }
-	        	  }
-	        	  String[] path = new String[patharray.size()];
-	        	  patharray.toArray(path);
-	        	  
-	        	  fconfig.setHierarchical(Token.string(data.name(i, Data.ELEM)), true);
-	        	  doc.add(new FacetField(Token.string(data.name(i, Data.ELEM)), path));
-	        	  i += csize;
-	        	}
-	        	else{
-	              if(ckind == Data.TEXT){
-	                final byte[] text = data.text(i, true);
-	                doc.add(new TextField("text", Token.string(text), Field.Store.YES));
-	                fconfig.setMultiValued(Token.string(data.name(cpar, Data.ELEM)), true);
-	                System.out.println(Token.string(text));
-	                doc.add(new FacetField(Token.string(data.name(cpar, Data.ELEM)), Token.string(text)));
-	              }
-	        	}
-	        	}
-	        	//pre += i;
-	          }  
-	          writer.addDocument(fconfig.build(taxoWriter, doc));
-	          System.out.println(doc);
-	        }
-	        }
-	        
-	      }
-
-	      writer.forceMerge(5);
-	      writer.commit();
-	      taxoWriter.commit();
-
-	    } finally {
-	      writer.close();
-	      taxoWriter.close();
-	    }
-	  }
+  private static void delete(final IndexWriter writer, final int id) throws IOException {
+    writer.deleteDocuments(
+        NumericRangeQuery.newIntRange("pre", id, id, true, true),
+        new TermQuery(new Term(ANC, Integer.toString(id))));
+  }
 
   /**
    * Queries all facets of given Database and builds
    * XML structure for facet results.
    * @param data Data
+   * @param fopts facet options
    * @return ArrayList of ANode
    * @throws IOException I/O exception
    */
-  public static ArrayList<ANode> facet(final Data data) throws IOException {
-    IOFile indexpath = data.meta.path;
-
-    FacetsConfig fconfig = new FacetsConfig();
-
-    IndexReader reader = DirectoryReader.open(FSDirectory.open(
-        new File(indexpath.toString() + "/" + "LuceneIndex")));
-    IndexSearcher searcher = new IndexSearcher(reader);
-    TaxonomyReader taxoReader = new DirectoryTaxonomyReader(FSDirectory.open(
-        new File(indexpath.toString() + "/" + "LuceneIndex-taxo")));
-    FacetsCollector facetsCollector = new FacetsCollector(true);
-
-    FacetsCollector.search(searcher, new MatchAllDocsQuery(), 1, facetsCollector);
-    Facets ftext = new FastTaxonomyFacetCounts(
-         taxoReader, fconfig, facetsCollector);
+  public static ArrayList<ANode> facet(final Data data, final LuceneFacetOptions fopts)
+      throws IOException {
+    final SearcherAndTaxonomy st = LuceneReaders.acquire(data);
+    try {
+      FacetsConfig fconfig = facetsConfig(st);
+      final String key = LuceneCache.key(data, st, "all-facets/" + fopts, null);
+      final ANode[] cached = (ANode[]) LuceneCache.get(key);
+      if(key != null) LuceneStats.get(data).cache(cached != null);
+      if(cached != null) return new ArrayList<>(Arrays.asList(cached));
 
-    List<FacetResult> results = ftext.getAllDims(Integer.MAX_VALUE);
-    
-    ArrayList<ANode> facets = new ArrayList<>();
-    facets = elems(results, ftext);
-    
-    reader.close();
-    taxoReader.close();
+      Facets ftext = ((LuceneSearcher) st.searcher).searchFacets(new MatchAllDocsQuery(), 1,
+          st.taxonomyReader, fconfig, fopts.sample).facets;
 
-    return facets;
+      ArrayList<ANode> facets = elems(ftext, fopts);
+      final ANode[] fnodes = facets.toArray(new ANode[facets.size()]);
+      LuceneCache.put(key, fnodes, memory(fnodes));
+      return facets;
+    } finally {
+      LuceneReaders.release(st);
+    }
   }
-  
+
   /**
-   * Used to build XML elements for facets.
-   * @param results facet results
+   * Used to build XML elements for facets. Only the dimensions with the
+   * highest counts and the top entries of each level are returned,
+   * down to the maximum depth.
    * @param ftext facets
+   * @param fopts facet options
    * @return ANodes containing facet information
-   * @throws IOException
-   */
-  public static ArrayList<ANode> elems(final List<FacetResult> results, final Facets ftext) throws IOException {
-	int flength = results.size();
-	   
-	ArrayList<ANode> facets = new ArrayList<>();
-	FElem facetElem = new FElem("facets");
-	    
-	for(int i = 1; i < flength+1; i++) {
-	  FacetResult fresult = results.get(i-1);
-	  String fdim = fresult.dim;
-	  LabelAndValue[] value = fresult.labelValues;
-      int laVLength = value.length;
-		    
-	  FElem mainElem = new FElem("category");
-	  mainElem.add("name", fdim);
-	  facetElem.add(mainElem);
-	  for(int j = 0; j < laVLength; j++){
-		FElem elem = new FElem("entry").add("number", value[j].value.toString());
-		FElem valueElem = new FElem("value").add(value[j].label.toString());
-		elem.add(valueElem);
-		subElems(elem, ftext, fdim, value[j].label);
-		mainElem.add(elem);
-	  }
-	}
-	facets.add(facetElem);
-	
-	return facets;
+   * @throws IOException I/O exception
+   */
+  public static ArrayList<ANode> elems(final Facets ftext, final LuceneFacetOptions fopts)
+      throws IOException {
+    ArrayList<ANode> facets = new ArrayList<>();
+    List<FacetResult> results = ftext.getAllDims(fopts.top);
+    if(results.isEmpty()) return facets;
+
+    FElem facetElem = new FElem("facets");
+    int flength = Math.min(results.size(), fopts.dims);
+    String[] path = new String[1];
+
+    for(int i = 0; i < flength; i++) {
+      FacetResult fresult = results.get(i);
+      String fdim = fresult.dim;
+      LabelAndValue[] value = fresult.labelValues;
+
+      FElem mainElem = new FElem("category");
+      mainElem.add("name", fdim);
+      facetElem.add(mainElem);
+      for(int j = 0; j < value.length; j++) {
+        FElem elem = entry(value[j]);
+        path[0] = value[j].label;
+        subElems(elem, ftext, fdim, fopts.depth - 1, fopts.top, path);
+        mainElem.add(elem);
+      }
+    }
+    facets.add(facetElem);
+
+    return facets;
   }
 
   /**
    * Used for building hierarchical structure of XML nodes.
+   * One path array is allocated per level and reused for all entries.
    * @param elem FElem
    * @param ftext Facets
-   * @param path String...
+   * @param dim dimension
+   * @param depth number of levels to be added
+   * @param top maximum number of entries per level
+   * @param path path of the parent entry
    * @throws IOException I/OException
    */
-  public static void subElems(final FElem elem, final Facets ftext, final String dim, final String... path)
-      throws IOException {
-    FacetResult results = ftext.getTopChildren(10, dim, path);
+  public static void subElems(final FElem elem, final Facets ftext, final String dim,
+      final int depth, final int top, final String... path) throws IOException {
+    if(depth <= 0) return;
+    FacetResult results = ftext.getTopChildren(top, dim, path);
 
     if(results != null) {
       LabelAndValue[] labelValues = results.labelValues;
+      int length = path.length;
+      String[] newPath = depth > 1 ? Arrays.copyOf(path, length + 1) : null;
 
       for(int i = 0; i < labelValues.length; i++) {
-        FElem subElem = new FElem("entry").add("number", labelValues[i].value.toString());
-        FElem valueElem = new FElem("value").add(labelValues[i].label.toString());
-        subElem.add(valueElem);
-        int length = path.length;
-        String[] newPath = new String[length + 1];
-        System.arraycopy(path, 0, newPath, 0, length);
-        newPath[length] = labelValues[i].label;
-        subElems(subElem, ftext, dim, newPath);
+        FElem subElem = entry(labelValues[i]);
+        if(newPath != null) {
+          newPath[length] = labelValues[i].label;
+          subElems(subElem, ftext, dim, depth - 1, top, newPath);
+        }
         elem.add(subElem);
       }
     }
+  }
 
+  /**
+   * Creates the XML element for a facet entry.
+   * @param lv label and value
+   * @return entry element
+   */
+  private static FElem entry(final LabelAndValue lv) {
+    return new FElem("entry").add("number", lv.value.toString()).
+        add(new FElem("value").add(lv.label));
   }
 
-}
\ No newline at end of file
+}
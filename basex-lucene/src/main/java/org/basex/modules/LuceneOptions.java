@@ -0,0 +1,185 @@
+package org.basex.modules;
+
+import org.apache.lucene.analysis.*;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Version;
+import org.basex.query.*;
+import org.basex.query.value.map.Map;
+
+/**
+ * Options for building a Lucene index. The defaults can be set via system
+ * properties with the prefix {@code lucene.build.} (e.g.
+ * {@code -Dlucene.build.threads=8}), and they can be overwritten
+ * per call by passing a map with the same keys.
+ *
+ * @author Stephan
+ *
+ */
+public final class LuceneOptions {
+  /**
+   * Number of threads that build and add documents.
+   */
+  public int threads = Integer.getInteger("lucene.build.threads",
+      Runtime.getRuntime().availableProcessors());
+  /**
+   * RAM buffer of the index writer (MB).
+   */
+  public double ram = Double.parseDouble(System.getProperty("lucene.build.ram", "64"));
+  /**
+   * Number of segments per tier of the merge policy.
+   */
+  public double segments = Double.parseDouble(System.getProperty("lucene.build.segments", "10"));
+  /**
+   * Maximum size of a merged segment (MB).
+   */
+  public double segmentsize = Double.parseDouble(
+      System.getProperty("lucene.build.segmentsize", "5120"));
+  /**
+   * Maximum number of concurrent merge threads.
+   */
+  public int mergethreads = Integer.getInteger("lucene.build.mergethreads", 1);
+  /**
+   * Maximum number of pending merges before indexing threads are stalled;
+   * {@code 0} allows one more merge than merge threads.
+   */
+  public int mergecount = Integer.getInteger("lucene.build.mergecount", 0);
+  /**
+   * Maximum write rate of merges (MB/s); {@code 0} disables the throttling.
+   * Only applies to the long-lived writers of {@link LuceneWriter}.
+   */
+  public double mergerate = Double.parseDouble(
+      System.getProperty("lucene.build.mergerate", "0"));
+  /**
+   * Maximum number of segments after the build; {@code 0} skips the forced merge.
+   */
+  public int merge = Integer.getInteger("lucene.build.merge", 0);
+  /**
+   * Number of documents after which the progress is reported; {@code 0} disables it.
+   */
+  public int progress = Integer.getInteger("lucene.build.progress", 100000);
+  /**
+   * Index format: {@code full} stores the texts and node ids in the index;
+   * {@code slim} only indexes them and keeps the node ids as doc values,
+   * as the texts can be read from the database.
+   */
+  public String format = System.getProperty("lucene.build.format", "full");
+  /**
+   * Field-mapping rules of schema-based indexes ({@code null} if no texts are
+   * indexed in path-scoped fields).
+   */
+  LuceneFields fields;
+
+  /**
+   * Constructor, using the default options.
+   */
+  public LuceneOptions() { }
+
+  /**
+   * Constructor, overwriting the default options with the entries of the given map.
+   * @param options options map
+   * @throws QueryException query exception
+   */
+  public LuceneOptions(final Map options) throws QueryException {
+    set(options);
+  }
+
+  /**
+   * Overwrites the options with the entries of the given map.
+   * @param options options map
+   * @return self reference
+   * @throws QueryException query exception
+   */
+  public LuceneOptions set(final Map options) throws QueryException {
+    for(final java.util.Map.Entry<Object, Object> entry : options.toJava().entrySet()) {
+      final String key = entry.getKey().toString();
+      final Object value = entry.getValue();
+      if(key.equals("format")) {
+        if(!value.equals("full") && !value.equals("slim")) {
+          throw new QueryException("Unknown index format: " + value);
+        }
+        format = value.toString();
+        continue;
+      }
+      if(key.equals("fields")) {
+        if(!(value instanceof java.util.Map)) {
+          throw new QueryException("Map expected for option 'fields': " + value);
+        }
+        fields = new LuceneFields((java.util.Map<?, ?>) value);
+        continue;
+      }
+      if(!(value instanceof Number)) {
+        throw new QueryException("Numeric value expected for option '" + key + "': " + value);
+      }
+      final Number num = (Number) value;
+      switch(key) {
+        case "threads": threads = num.intValue(); break;
+        case "ram": ram = num.doubleValue(); break;
+        case "segments": segments = num.doubleValue(); break;
+        case "segmentsize": segmentsize = num.doubleValue(); break;
+        case "mergethreads": mergethreads = num.intValue(); break;
+        case "mergecount": mergecount = num.intValue(); break;
+        case "mergerate": mergerate = num.doubleValue(); break;
+        case "merge": merge = num.intValue(); break;
+        case "progress": progress = num.intValue(); break;
+        default: throw new QueryException("Unknown Lucene option: " + key);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Checks that the given map only contains the specified options.
+   * @param options options map
+   * @param keys supported options
+   * @throws QueryException query exception
+   */
+  static void supported(final Map options, final String... keys) throws QueryException {
+    final java.util.List<String> list = java.util.Arrays.asList(keys);
+    for(final Object key : options.toJava().keySet()) {
+      if(!list.contains(key.toString())) {
+        throw new QueryException("Option not supported here: " + key);
+      }
+    }
+  }
+
+  /**
+   * Creates an index writer configuration for these options.
+   * @param analyzer analyzer
+   * @return configuration
+   */
+  public IndexWriterConfig config(final Analyzer analyzer) {
+    final TieredMergePolicy mp = new TieredMergePolicy();
+    final ConcurrentMergeScheduler ms = new ConcurrentMergeScheduler();
+    merges(mp, ms);
+
+    final IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_9, analyzer);
+    config.setRAMBufferSizeMB(ram);
+    config.setMergePolicy(mp);
+    config.setMergeScheduler(ms);
+    config.setMaxThreadStates(Math.max(1, threads));
+    return config;
+  }
+
+  /**
+   * Applies the merge options to the given merge policy and scheduler.
+   * Both can also be changed while a writer is open.
+   * @param mp merge policy
+   * @param ms merge scheduler
+   */
+  void merges(final TieredMergePolicy mp, final ConcurrentMergeScheduler ms) {
+    mp.setSegmentsPerTier(Math.max(2, segments));
+    mp.setMaxMergedSegmentMB(segmentsize);
+    final int mt = Math.max(1, mergethreads);
+    ms.setMaxMergesAndThreads(Math.max(mt, mergecount > 0 ? mergecount : mt + 1), mt);
+  }
+
+  /**
+   * Returns if texts and node ids are stored in indexes of the given format.
+   * @param format index format (may be {@code null})
+   * @return store flag
+   */
+  static Field.Store store(final String format) {
+    return "slim".equals(format) ? Field.Store.NO : Field.Store.YES;
+  }
+}
@@ -0,0 +1,333 @@
+package org.basex.modules;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+import org.apache.lucene.analysis.*;
+import org.apache.lucene.analysis.tokenattributes.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.queryparser.classic.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Version;
+
+/**
+ * Parses Lucene queries. Parsed queries are cached, and query templates can be
+ * prepared once and then be executed with different parameters. A template
+ * contains placeholders of the form {@code $name}, which may be used as terms,
+ * in phrases or as prefixes (e.g. {@code title:$t AND "new $word"}). When a
+ * template is executed, the parameters are analyzed and substituted in the
+ * parsed template; the template is not parsed again.
+ *
+ * The number of cached queries is bounded by the system property
+ * {@code lucene.query.cache} (default: 1000), the number of prepared
+ * templates by {@code lucene.query.prepared} (default: 1000).
+ *
+ * @author Stephan
+ *
+ */
+public final class LuceneQueries {
+  /**
+   * Pattern for placeholders.
+   */
+  private static final Pattern PARAM = Pattern.compile("\\$([A-Za-z_][A-Za-z0-9_]*)");
+  /**
+   * Prefix of the terms that replace placeholders while a template is parsed.
+   */
+  private static final String SENTINEL = "luceneparamx";
+  /**
+   * Maximum number of cached queries.
+   */
+  private static final int CACHE = Integer.getInteger("lucene.query.cache", 1000);
+  /**
+   * Maximum number of prepared templates.
+   */
+  private static final int PREPARED = Math.max(1, Integer.getInteger("lucene.query.prepared",
+      1000));
+  /**
+   * Cached queries, indexed by query string, in access order.
+   */
+  private static final LinkedHashMap<String, Query> QUERIES =
+      new LinkedHashMap<String, Query>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final java.util.Map.Entry<String, Query> eldest) {
+      return size() > CACHE;
+    }
+  };
+  /**
+   * Prepared templates, indexed by their ID.
+   */
+  private static final ConcurrentHashMap<Integer, LuceneQueries> TEMPLATES =
+      new ConcurrentHashMap<>();
+  /**
+   * Last assigned template ID.
+   */
+  private static final AtomicInteger ID = new AtomicInteger();
+
+  /**
+   * Analyzer.
+   */
+  private final Analyzer analyzer;
+  /**
+   * Parsed template.
+   */
+  private final Query template;
+  /**
+   * Parameter names, indexed by the number of their sentinel.
+   */
+  private final ArrayList<String> params;
+
+  /**
+   * Constructor.
+   * @param template parsed template
+   * @param params parameter names
+   * @param analyzer analyzer
+   */
+  private LuceneQueries(final Query template, final ArrayList<String> params,
+      final Analyzer analyzer) {
+    this.template = template;
+    this.params = params;
+    this.analyzer = analyzer;
+  }
+
+  /**
+   * Parses a query, or returns the cached query for the same string.
+   * The returned query must not be modified.
+   * @param query query string
+   * @param analyzer analyzer
+   * @return query
+   * @throws ParseException parse exception
+   */
+  static Query parse(final String query, final Analyzer analyzer) throws ParseException {
+    synchronized(QUERIES) {
+      final Query cached = QUERIES.get(query);
+      if(cached != null) return cached;
+    }
+    final Query parsed = new QueryParser(Version.LUCENE_4_9, "text", analyzer).parse(query);
+    if(CACHE > 0) {
+      synchronized(QUERIES) {
+        QUERIES.put(query, parsed);
+      }
+    }
+    return parsed;
+  }
+
+  /**
+   * Prepares a query template.
+   * @param query query template
+   * @param analyzer analyzer
+   * @return template ID
+   * @throws ParseException parse exception
+   */
+  static int prepare(final String query, final Analyzer analyzer) throws ParseException {
+    // replace placeholders with terms that are left unchanged by the analyzer
+    final ArrayList<String> names = new ArrayList<>();
+    final Matcher m = PARAM.matcher(query);
+    final StringBuffer sb = new StringBuffer();
+    while(m.find()) {
+      int i = names.indexOf(m.group(1));
+      if(i == -1) {
+        i = names.size();
+        names.add(m.group(1));
+      }
+      m.appendReplacement(sb, SENTINEL + i + 'x');
+    }
+    m.appendTail(sb);
+
+    final Query parsed = new QueryParser(Version.LUCENE_4_9, "text", analyzer).
+        parse(sb.toString());
+    final LuceneQueries prepared = new LuceneQueries(parsed, names, analyzer);
+    final BitSet found = new BitSet();
+    prepared.check(parsed, found);
+    for(int i = 0; i < names.size(); i++) {
+      if(!found.get(i)) {
+        throw new ParseException("Parameter $" + names.get(i) + " cannot be bound in: " + query);
+      }
+    }
+
+    if(TEMPLATES.size() >= PREPARED) {
+      // drop the oldest template
+      int min = Integer.MAX_VALUE;
+      for(final int id : TEMPLATES.keySet()) min = Math.min(min, id);
+      TEMPLATES.remove(min);
+    }
+    final int id = ID.incrementAndGet();
+    TEMPLATES.put(id, prepared);
+    return id;
+  }
+
+  /**
+   * Returns a prepared template.
+   * @param id template ID
+   * @return template, or {@code null} if it does not exist
+   */
+  static LuceneQueries get(final int id) {
+    return TEMPLATES.get(id);
+  }
+
+  /**
+   * Removes a prepared template.
+   * @param id template ID
+   * @return {@code true} if the template existed
+   */
+  static boolean remove(final int id) {
+    return TEMPLATES.remove(id) != null;
+  }
+
+  /**
+   * Creates a query from this template by substituting the given parameters.
+   * @param values parameter values, indexed by name
+   * @return query
+   * @throws ParseException if a parameter is missing or unknown
+   * @throws IOException I/O exception
+   */
+  Query bind(final java.util.Map<String, String> values) throws ParseException, IOException {
+    for(final String name : values.keySet()) {
+      if(!params.contains(name)) throw new ParseException("Unknown parameter: $" + name);
+    }
+    final String[] vals = new String[params.size()];
+    for(int i = 0; i < vals.length; i++) {
+      vals[i] = values.get(params.get(i));
+      if(vals[i] == null) throw new ParseException("Missing parameter: $" + params.get(i));
+    }
+    final Query query = bind(template, vals);
+    return query != null ? query : new BooleanQuery();
+  }
+
+  /**
+   * Substitutes the parameters in the given query.
+   * @param query query
+   * @param vals parameter values
+   * @return new query, or {@code null} if a parameter yields no terms
+   * @throws IOException I/O exception
+   */
+  private Query bind(final Query query, final String[] vals) throws IOException {
+    final Query bound;
+    if(query instanceof BooleanQuery) {
+      final BooleanQuery bq = (BooleanQuery) query;
+      final BooleanQuery nq = new BooleanQuery(bq.isCoordDisabled());
+      nq.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+      for(final BooleanClause clause : bq.clauses()) {
+        final Query q = bind(clause.getQuery(), vals);
+        if(q != null) nq.add(q, clause.getOccur());
+      }
+      if(nq.clauses().isEmpty()) return null;
+      bound = nq;
+    } else if(query instanceof TermQuery) {
+      final Term term = ((TermQuery) query).getTerm();
+      final int p = param(term);
+      if(p == -1) return query;
+      final ArrayList<String> tokens = analyze(term.field(), vals[p]);
+      if(tokens.isEmpty()) return null;
+      if(tokens.size() == 1) {
+        bound = new TermQuery(new Term(term.field(), tokens.get(0)));
+      } else {
+        // same as the query parser for several tokens without quotes
+        final BooleanQuery bq = new BooleanQuery(true);
+        for(final String token : tokens) {
+          bq.add(new TermQuery(new Term(term.field(), token)), BooleanClause.Occur.SHOULD);
+        }
+        bound = bq;
+      }
+    } else if(query instanceof PhraseQuery) {
+      final PhraseQuery pq = (PhraseQuery) query;
+      final Term[] terms = pq.getTerms();
+      final int[] positions = pq.getPositions();
+      final PhraseQuery nq = new PhraseQuery();
+      nq.setSlop(pq.getSlop());
+      int shift = 0;
+      boolean changed = false;
+      for(int t = 0; t < terms.length; t++) {
+        final int p = param(terms[t]);
+        if(p == -1) {
+          nq.add(terms[t], positions[t] + shift);
+        } else {
+          final ArrayList<String> tokens = analyze(terms[t].field(), vals[p]);
+          for(int k = 0; k < tokens.size(); k++) {
+            nq.add(new Term(terms[t].field(), tokens.get(k)), positions[t] + shift + k);
+          }
+          shift += tokens.size() - 1;
+          changed = true;
+        }
+      }
+      if(!changed) return query;
+      if(nq.getTerms().length == 0) return null;
+      bound = nq;
+    } else if(query instanceof PrefixQuery) {
+      final Term term = ((PrefixQuery) query).getPrefix();
+      final int p = param(term);
+      if(p == -1) return query;
+      // the query parser lowercases expanded terms
+      bound = new PrefixQuery(new Term(term.field(), vals[p].toLowerCase(Locale.ROOT)));
+    } else {
+      return query;
+    }
+    bound.setBoost(query.getBoost());
+    return bound;
+  }
+
+  /**
+   * Marks the parameters that can be substituted in the given query.
+   * @param query query
+   * @param found found parameters
+   */
+  private void check(final Query query, final BitSet found) {
+    if(query instanceof BooleanQuery) {
+      for(final BooleanClause clause : ((BooleanQuery) query).clauses()) {
+        check(clause.getQuery(), found);
+      }
+    } else if(query instanceof TermQuery) {
+      mark(((TermQuery) query).getTerm(), found);
+    } else if(query instanceof PhraseQuery) {
+      for(final Term term : ((PhraseQuery) query).getTerms()) mark(term, found);
+    } else if(query instanceof PrefixQuery) {
+      mark(((PrefixQuery) query).getPrefix(), found);
+    }
+  }
+
+  /**
+   * Marks the parameter of the given term.
+   * @param term term
+   * @param found found parameters
+   */
+  private void mark(final Term term, final BitSet found) {
+    final int p = param(term);
+    if(p != -1) found.set(p);
+  }
+
+  /**
+   * Returns the number of the parameter represented by the given term.
+   * @param term term
+   * @return parameter number, or {@code -1}
+   */
+  private int param(final Term term) {
+    final String text = term.text();
+    if(!text.startsWith(SENTINEL) || !text.endsWith("x")) return -1;
+    try {
+      final int p = Integer.parseInt(text.substring(SENTINEL.length(), text.length() - 1));
+      return p < params.size() ? p : -1;
+    } catch(final NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Analyzes a parameter value.
+   * @param field field
+   * @param value value
+   * @return tokens
+   * @throws IOException I/O exception
+   */
+  private ArrayList<String> analyze(final String field, final String value) throws IOException {
+    final ArrayList<String> tokens = new ArrayList<>();
+    try(final TokenStream ts = analyzer.tokenStream(field, value)) {
+      final CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+      ts.reset();
+      while(ts.incrementToken()) tokens.add(term.toString());
+      ts.end();
+    }
+    return tokens;
+  }
+}
@@ -0,0 +1,163 @@
+package org.basex.modules;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.facet.taxonomy.*;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager.SearcherAndTaxonomy;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.*;
+import org.basex.data.*;
+
+/**
+ * Caches one searcher and taxonomy reader per database. Readers are
+ * reference counted: callers {@link #acquire} them and must
+ * {@link #release} them when they are done. Before a searcher is handed out,
+ * it is refreshed if the index generation has changed.
+ *
+ * @author Stephan
+ *
+ */
+public final class LuceneReaders {
+  /**
+   * Reader managers, indexed by database path.
+   */
+  private static final ConcurrentHashMap<String, SearcherTaxonomyManager> MANAGERS =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Commit generations of the indexes that have been copied to memory,
+   * indexed by database path.
+   */
+  private static final ConcurrentHashMap<String, long[]> RESIDENT = new ConcurrentHashMap<>();
+
+  /**
+   * Private constructor.
+   */
+  private LuceneReaders() { }
+
+  /**
+   * Acquires the current searcher and taxonomy reader of the given database.
+   * @param data database data
+   * @return searcher and taxonomy reader
+   * @throws IOException I/O exception
+   */
+  public static SearcherAndTaxonomy acquire(final Data data) throws IOException {
+    return acquire(data.meta.name, data.meta.path.toString());
+  }
+
+  /**
+   * Acquires the current searcher and taxonomy reader of the database with
+   * the given name and path. The database itself need not be opened.
+   * @param name database name
+   * @param path database path
+   * @return searcher and taxonomy reader
+   * @throws IOException I/O exception
+   */
+  public static SearcherAndTaxonomy acquire(final String name, final String path)
+      throws IOException {
+    for(;;) {
+      final SearcherTaxonomyManager manager = manager(name, path);
+      try {
+        manager.maybeRefresh();
+        return manager.acquire();
+      } catch(final AlreadyClosedException ex) {
+        // the manager has been closed by another thread: look it up again
+        MANAGERS.remove(path, manager);
+      }
+    }
+  }
+
+  /**
+   * Returns the reader manager of the database with the given name and path.
+   * The manager is created if required.
+   * @param name database name
+   * @param path database path
+   * @return reader manager
+   * @throws IOException I/O exception
+   */
+  private static SearcherTaxonomyManager manager(final String name, final String path)
+      throws IOException {
+    final File indexFile = LuceneDirectory.index(path);
+    if(!indexFile.exists()) {
+      // database has been dropped, or no index exists
+      close(path);
+      throw new FileNotFoundException("No Lucene index found: " + indexFile);
+    }
+
+    final boolean resident = LuceneDirectory.resident(name);
+    final long[] gens = resident ? LuceneDirectory.generations(path) : null;
+    SearcherTaxonomyManager manager = MANAGERS.get(path);
+    if(manager != null && resident && !Arrays.equals(gens, RESIDENT.get(path))) {
+      // copies in memory are not refreshed: load the new commit
+      close(path);
+      manager = null;
+    }
+    if(manager == null) {
+      synchronized(MANAGERS) {
+        manager = MANAGERS.get(path);
+        if(manager == null) {
+          if(resident) RESIDENT.put(path, gens);
+          manager = new SearcherTaxonomyManager(LuceneDirectory.open(name, path, false, false),
+              LuceneDirectory.open(name, path, true, false), LuceneSearcher.FACTORY);
+          final LuceneStats stats = LuceneStats.get(name, path);
+          stats.readerOpened();
+          manager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() { }
+
+            @Override
+            public void afterRefresh(final boolean refreshed) {
+              if(refreshed) stats.readerOpened();
+            }
+          });
+          MANAGERS.put(path, manager);
+        }
+      }
+    }
+    return manager;
+  }
+
+  /**
+   * Releases a searcher and taxonomy reader that has been acquired before.
+   * Works the same way if the manager has been closed in the meantime.
+   * @param st searcher and taxonomy reader
+   * @throws IOException I/O exception
+   */
+  public static void release(final SearcherAndTaxonomy st) throws IOException {
+    st.searcher.getIndexReader().decRef();
+    st.taxonomyReader.decRef();
+  }
+
+  /**
+   * Closes the cached readers of the given database.
+   * Readers that are still acquired will be closed when they are released.
+   * @param data database data
+   * @throws IOException I/O exception
+   */
+  public static void close(final Data data) throws IOException {
+    close(data.meta.path.toString());
+  }
+
+  /**
+   * Closes the cached readers of the database with the given path
+   * and drops its cached results.
+   * @param path database path
+   * @throws IOException I/O exception
+   */
+  public static void close(final String path) throws IOException {
+    LuceneCache.invalidate(path);
+    RESIDENT.remove(path);
+    final SearcherTaxonomyManager manager = MANAGERS.remove(path);
+    if(manager != null) manager.close();
+  }
+
+  /**
+   * Closes all cached readers.
+   * @throws IOException I/O exception
+   */
+  public static void closeAll() throws IOException {
+    for(final String path : MANAGERS.keySet()) close(path);
+  }
+}
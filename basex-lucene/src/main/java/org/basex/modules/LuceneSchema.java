@@ -0,0 +1,264 @@
+package org.basex.modules;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.document.*;
+import org.apache.lucene.facet.*;
+import org.basex.data.*;
+import org.basex.util.*;
+import org.basex.util.list.*;
+
+/**
+ * Creates the documents of a schema-based index in a single pass.
+ * One document is created for each main element. Each text node in its
+ * subtree is indexed as text. Elements with more than one descendant are
+ * indexed as hierarchical facets with the texts of their subtree as path;
+ * all other texts are indexed as facet values of their parent element.
+ * If field-mapping rules are specified, the texts are additionally indexed
+ * in the fields of their ancestors (see {@link LuceneFields}).
+ *
+ * @author Stephan
+ *
+ */
+final class LuceneSchema {
+  /**
+   * Database data.
+   */
+  private final Data data;
+  /**
+   * Facets configuration.
+   */
+  private final FacetsConfig fconfig;
+  /**
+   * Builder.
+   */
+  private final LuceneBuilder builder;
+  /**
+   * Store texts and node ids.
+   */
+  private final Field.Store store;
+  /**
+   * Field-mapping rules ({@code null} if no path-scoped fields are indexed).
+   */
+  private final LuceneFields fields;
+  /**
+   * Parent of the last text node with path-scoped fields.
+   */
+  private int fpar = -1;
+  /**
+   * Path-scoped fields of the last text node.
+   */
+  private String[] fnames = new String[0];
+  /**
+   * Name id of the main element ({@code 0} if it does not occur in the database).
+   */
+  private final int main;
+  /**
+   * Facet dimensions, indexed by name id.
+   */
+  private final String[] dims;
+  /**
+   * Flags for configured hierarchical dimensions, indexed by name id.
+   */
+  private final boolean[] hierarchical;
+  /**
+   * Open documents, innermost last.
+   */
+  private final ArrayList<Unit> open = new ArrayList<>();
+
+  /**
+   * Constructor.
+   * @param data database data
+   * @param mainEle main element
+   * @param fconfig facets configuration
+   * @param builder builder
+   * @param store store texts and node ids
+   * @param fields field-mapping rules (may be {@code null})
+   */
+  LuceneSchema(final Data data, final String mainEle, final FacetsConfig fconfig,
+      final LuceneBuilder builder, final Field.Store store, final LuceneFields fields) {
+    this.data = data;
+    this.fconfig = fconfig;
+    this.builder = builder;
+    this.store = store;
+    this.fields = fields;
+    main = data.elemNames.id(Token.token(mainEle));
+    final int names = data.elemNames.size() + 1;
+    dims = new String[names];
+    hierarchical = new boolean[names];
+  }
+
+  /**
+   * Checks if the specified node is a main element.
+   * @param pre pre value
+   * @return result of check
+   */
+  boolean isMain(final int pre) {
+    return main != 0 && data.kind(pre) == Data.ELEM && data.name(pre) == main;
+  }
+
+  /**
+   * Creates one document for each main element in the given range.
+   * @param start pre value of the first node
+   * @param end pre value after the last node
+   * @throws IOException I/O exception
+   */
+  void index(final int start, final int end) throws IOException {
+    if(main == 0) return;
+
+    for(int pre = start; pre < end; pre++) {
+      // finish documents and deep elements that end before this node
+      for(int o = open.size() - 1; o >= 0; o--) {
+        final Unit unit = open.get(o);
+        if(unit.end <= pre) {
+          builder.add(unit.finish());
+          open.remove(o);
+        } else if(unit.deepEnd != 0 && unit.deepEnd <= pre) {
+          unit.finishDeep();
+        }
+      }
+
+      final int kind = data.kind(pre);
+      if(kind == Data.ELEM) {
+        final int size = data.size(pre, kind);
+        if(size > 2) {
+          for(final Unit unit : open) {
+            if(unit.deepEnd == 0) {
+              unit.deep = pre;
+              unit.deepEnd = pre + size;
+            }
+          }
+        }
+        if(data.name(pre) == main) open.add(new Unit(pre, pre + size));
+      } else if(kind == Data.TEXT && !open.isEmpty()) {
+        final String text = Token.string(data.text(pre, true));
+        final int par = data.parent(pre, kind);
+        final String[] names = fields(par);
+        for(final Unit unit : open) {
+          unit.doc.add(new TextField("text", text, store));
+          for(final String name : names) unit.doc.add(new TextField(name, text, Field.Store.NO));
+          if(unit.deepEnd != 0) {
+            unit.path.add(text);
+          } else {
+            unit.doc.add(new FacetField(dim(par, false), text));
+          }
+        }
+      }
+    }
+
+    for(int o = open.size() - 1; o >= 0; o--) builder.add(open.remove(o).finish());
+  }
+
+  /**
+   * Returns the path-scoped fields of the texts of the specified element.
+   * The fields of all ancestors are included.
+   * @param par pre value of the parent element
+   * @return fields
+   */
+  private String[] fields(final int par) {
+    if(fields == null) return fnames;
+    if(par != fpar) {
+      final IntList elems = new IntList();
+      for(int p = par; p >= 0 && data.kind(p) == Data.ELEM; p = data.parent(p, Data.ELEM)) {
+        elems.add(p);
+      }
+      final ArrayList<String> list = new ArrayList<>();
+      final StringBuilder path = new StringBuilder();
+      boolean inside = false;
+      for(int e = elems.size() - 1; e >= 0; e--) {
+        final int pre = elems.get(e);
+        final String name = Token.string(data.name(pre, Data.ELEM));
+        path.append('/').append(name);
+        fields.match(name, path.toString(), inside, list);
+        if(data.name(pre) == main) inside = true;
+      }
+      fpar = par;
+      fnames = list.toArray(new String[list.size()]);
+    }
+    return fnames;
+  }
+
+  /**
+   * Returns the facet dimension of the specified element. Each dimension is
+   * configured only once.
+   * @param pre pre value of the element
+   * @param hier hierarchical dimension
+   * @return dimension
+   */
+  private String dim(final int pre, final boolean hier) {
+    final int name = data.name(pre);
+    String dim = dims[name];
+    if(dim == null) {
+      dim = Token.string(data.name(pre, Data.ELEM));
+      fconfig.setMultiValued(dim, true);
+      dims[name] = dim;
+    }
+    if(hier && !hierarchical[name]) {
+      fconfig.setHierarchical(dim, true);
+      hierarchical[name] = true;
+    }
+    return dim;
+  }
+
+  /**
+   * Document of a main element that is currently open.
+   */
+  private final class Unit {
+    /**
+     * Document.
+     */
+    final Document doc = new Document();
+    /**
+     * Pre value after the main element.
+     */
+    final int end;
+    /**
+     * Pre value of the open deep element.
+     */
+    int deep;
+    /**
+     * Pre value after the open deep element ({@code 0} if no deep element is open).
+     */
+    int deepEnd;
+    /**
+     * Texts of the open deep element.
+     */
+    final ArrayList<String> path = new ArrayList<>();
+
+    /**
+     * Constructor.
+     * @param pre pre value of the main element
+     * @param end pre value after the main element
+     */
+    Unit(final int pre, final int end) {
+      this.end = end;
+      final int id = data.id(pre);
+      doc.add(new IntField("pre", id, store));
+      doc.add(new NumericDocValuesField("pre", id));
+      for(int p = data.parent(pre, Data.ELEM); p >= 0; p = data.parent(p, data.kind(p))) {
+        doc.add(new StringField(LuceneIndex.ANC, Integer.toString(data.id(p)), Field.Store.NO));
+      }
+    }
+
+    /**
+     * Adds the facet of the open deep element.
+     */
+    void finishDeep() {
+      if(!path.isEmpty()) {
+        doc.add(new FacetField(dim(deep, true), path.toArray(new String[path.size()])));
+        path.clear();
+      }
+      deepEnd = 0;
+    }
+
+    /**
+     * Finishes the document.
+     * @return document
+     */
+    Document finish() {
+      if(deepEnd != 0) finishDeep();
+      return doc;
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package org.basex.modules;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+import org.basex.data.*;
+import org.basex.util.list.*;
+
+/**
+ * Filter that restricts a search to the documents whose nodes are contained
+ * in a set of database nodes (including the nodes themselves). The documents
+ * are looked up by the ids of the outermost nodes of the set in the node id
+ * ({@code pre}) and ancestor ({@code anc}) fields, so the costs depend on the
+ * size of the scope rather than on the size of the index. As only elements
+ * are indexed, other nodes (texts, attributes, comments, processing
+ * instructions) are replaced with their parent element.
+ *
+ * The document sets are cached per index segment. The number of cached
+ * scopes is bounded by the system property {@code lucene.scope.cache}
+ * (default: 100).
+ *
+ * @author Stephan
+ *
+ */
+final class LuceneScope extends Filter {
+  /**
+   * Maximum number of cached scopes.
+   */
+  private static final int CACHE = Integer.getInteger("lucene.scope.cache", 100);
+  /**
+   * Cached filters, indexed by database path and digest, in access order.
+   */
+  private static final LinkedHashMap<String, Filter> FILTERS =
+      new LinkedHashMap<String, Filter>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final java.util.Map.Entry<String, Filter> eldest) {
+      return size() > CACHE;
+    }
+  };
+
+  /**
+   * Database path.
+   */
+  private final String path;
+  /**
+   * Sorted ids of the outermost nodes.
+   */
+  private final int[] ids;
+  /**
+   * Digest of the ids, identifying the scope in cache keys.
+   */
+  private final String digest;
+
+  /**
+   * Constructor.
+   * @param data database data
+   * @param pres pre values of the nodes
+   */
+  LuceneScope(final Data data, final IntList pres) {
+    path = data.meta.path.toString();
+    final IntList elems = new IntList(pres.size());
+    for(int i = 0; i < pres.size(); i++) {
+      final int pre = pres.get(i), kind = data.kind(pre);
+      elems.add(kind == Data.ELEM || kind == Data.DOC ? pre : data.parent(pre, kind));
+    }
+    final int[] sorted = elems.toArray();
+    Arrays.sort(sorted);
+
+    // skip nodes that are contained in other nodes
+    final IntList roots = new IntList();
+    int end = -1;
+    for(final int pre : sorted) {
+      if(pre < end) continue;
+      roots.add(data.id(pre));
+      end = pre + data.size(pre, data.kind(pre));
+    }
+    roots.sort();
+    ids = roots.finish();
+    digest = digest(ids);
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(final AtomicReaderContext context, final Bits acceptDocs)
+      throws IOException {
+    return filter().getDocIdSet(context, acceptDocs);
+  }
+
+  /**
+   * Returns the cached filter of this scope.
+   * @return filter
+   */
+  private Filter filter() {
+    final String key = path + '/' + digest;
+    synchronized(FILTERS) {
+      Filter filter = FILTERS.get(key);
+      if(filter == null) {
+        filter = new CachingWrapperFilter(new Postings(ids));
+        if(CACHE > 0) FILTERS.put(key, filter);
+      }
+      return filter;
+    }
+  }
+
+  /**
+   * Computes a digest of the given ids.
+   * @param ids node ids
+   * @return digest
+   */
+  private static String digest(final int[] ids) {
+    try {
+      final MessageDigest md = MessageDigest.getInstance("SHA-1");
+      final byte[] bytes = new byte[4];
+      for(final int id : ids) {
+        for(int b = 0; b < 4; b++) bytes[b] = (byte) (id >>> (b << 3));
+        md.update(bytes);
+      }
+      final StringBuilder sb = new StringBuilder();
+      for(final byte b : md.digest()) sb.append(String.format("%02x", b & 0xFF));
+      return sb.toString();
+    } catch(final NoSuchAlgorithmException ex) {
+      // cannot happen: SHA-1 is supported by every Java platform
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if(!(obj instanceof LuceneScope)) return false;
+    final LuceneScope ls = (LuceneScope) obj;
+    return path.equals(ls.path) && Arrays.equals(ids, ls.ids);
+  }
+
+  @Override
+  public int hashCode() {
+    return digest.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "within(" + ids.length + ':' + digest + ')';
+  }
+
+  /**
+   * Filter that collects the documents of the given nodes and their descendants
+   * from the postings of the node id and ancestor fields.
+   */
+  private static final class Postings extends Filter {
+    /**
+     * Sorted node ids.
+     */
+    private final int[] ids;
+
+    /**
+     * Constructor.
+     * @param ids sorted node ids
+     */
+    Postings(final int[] ids) {
+      this.ids = ids;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(final AtomicReaderContext context, final Bits acceptDocs)
+        throws IOException {
+      final AtomicReader reader = context.reader();
+      final FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+      final BytesRef term = new BytesRef();
+      final Terms pre = reader.terms("pre"), anc = reader.terms(LuceneIndex.ANC);
+      final TermsEnum pres = pre != null ? pre.iterator(null) : null;
+      final TermsEnum ancs = anc != null ? anc.iterator(null) : null;
+      DocsEnum docs = null;
+      for(final int id : ids) {
+        if(pres != null) {
+          NumericUtils.intToPrefixCoded(id, 0, term);
+          if(pres.seekExact(term)) docs = collect(pres, acceptDocs, docs, bits);
+        }
+        if(ancs != null && ancs.seekExact(new BytesRef(Integer.toString(id)))) {
+          docs = collect(ancs, acceptDocs, docs, bits);
+        }
+      }
+      return bits;
+    }
+
+    /**
+     * Adds the documents of the current term to the given bit set.
+     * @param terms terms, positioned on the term
+     * @param acceptDocs accepted documents (may be {@code null})
+     * @param reuse documents enumeration to reuse (may be {@code null})
+     * @param bits bit set
+     * @return documents enumeration
+     * @throws IOException I/O exception
+     */
+    private static DocsEnum collect(final TermsEnum terms, final Bits acceptDocs,
+        final DocsEnum reuse, final FixedBitSet bits) throws IOException {
+      final DocsEnum docs = terms.docs(acceptDocs, reuse, DocsEnum.FLAG_NONE);
+      for(int doc; (doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS;) bits.set(doc);
+      return docs;
+    }
+  }
+}
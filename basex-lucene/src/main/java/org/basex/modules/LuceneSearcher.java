@@ -0,0 +1,262 @@
+package org.basex.modules;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.facet.*;
+import org.apache.lucene.facet.DrillSideways.DrillSidewaysResult;
+import org.apache.lucene.facet.taxonomy.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+
+/**
+ * Searcher that evaluates queries in parallel across index segments. The
+ * segments are grouped into contiguous slices; each query is split into at
+ * most {@code lucene.search.parallelism} slices (default: half of the
+ * available processors), which are evaluated by a pool of
+ * {@code lucene.search.threads} threads (default: number of available
+ * processors) shared by all queries. The calling thread evaluates the first
+ * slice itself. Hits and facet counts are collected in the same pass.
+ * Facets can be counted on a random sample of the hits of each slice;
+ * the sampled counts are then scaled by the sampling rate of the slice.
+ *
+ * @author Stephan
+ *
+ */
+final class LuceneSearcher extends IndexSearcher {
+  /**
+   * Maximum number of slices per query.
+   */
+  static final int PARALLELISM = Math.max(1, Integer.getInteger("lucene.search.parallelism",
+      Runtime.getRuntime().availableProcessors() / 2));
+  /**
+   * Number of threads shared by all queries.
+   */
+  static final int THREADS = Math.max(1, Integer.getInteger("lucene.search.threads",
+      Runtime.getRuntime().availableProcessors()));
+  /**
+   * Shared thread pool ({@code null} if queries are evaluated sequentially).
+   */
+  private static final ExecutorService POOL = PARALLELISM < 2 || THREADS < 2 ? null :
+    Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, "lucene-search");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  /**
+   * Seed for sampling hits.
+   */
+  private static final long SEED = 0x5DEECE66DL;
+  /**
+   * Factory for searchers of refreshed readers.
+   */
+  static final SearcherFactory FACTORY = new SearcherFactory() {
+    @Override
+    public IndexSearcher newSearcher(final IndexReader reader) {
+      return new LuceneSearcher(reader);
+    }
+  };
+
+  /**
+   * Segments of the slices.
+   */
+  private final List<List<AtomicReaderContext>> groups;
+
+  /**
+   * Constructor.
+   * @param reader index reader
+   */
+  LuceneSearcher(final IndexReader reader) {
+    super(reader, POOL);
+    groups = groups(leafContexts);
+  }
+
+  @Override
+  protected LeafSlice[] slices(final List<AtomicReaderContext> leaves) {
+    final List<List<AtomicReaderContext>> list = groups(leaves);
+    final LeafSlice[] slices = new LeafSlice[list.size()];
+    for(int s = 0; s < slices.length; s++) {
+      final List<AtomicReaderContext> group = list.get(s);
+      slices[s] = new LeafSlice(group.toArray(new AtomicReaderContext[group.size()]));
+    }
+    return slices;
+  }
+
+  /**
+   * Evaluates a query and counts the facets of all hits in the same pass.
+   * The result is the same as the one of a drill sideways search
+   * without drill-down dimensions.
+   * @param query query
+   * @param n maximum number of hits
+   * @param taxoReader taxonomy reader
+   * @param fconfig facets configuration
+   * @param sample number of sampled hits ({@code 0}: count all hits)
+   * @return hits and facet counts
+   * @throws IOException I/O exception
+   */
+  DrillSidewaysResult searchFacets(final Query query, final int n,
+      final TaxonomyReader taxoReader, final FacetsConfig fconfig, final int sample)
+      throws IOException {
+    final Weight weight = createNormalizedWeight(query);
+    // the sample is distributed evenly across the slices
+    final int slices = groups.size();
+    final int samples = sample == 0 ? 0 : Math.max(1, (sample + slices - 1) / slices);
+    final ArrayList<Future<Part>> futures = new ArrayList<>();
+    for(int s = 1; s < groups.size(); s++) {
+      final List<AtomicReaderContext> group = groups.get(s);
+      futures.add(POOL.submit(new Callable<Part>() {
+        @Override
+        public Part call() throws IOException {
+          return collect(group, weight, n, taxoReader, fconfig, samples);
+        }
+      }));
+    }
+
+    final int size = futures.size() + 1;
+    final TopDocs[] hits = new TopDocs[size];
+    final Part first = collect(groups.get(0), weight, n, taxoReader, fconfig, samples);
+    hits[0] = first.hits;
+    try {
+      for(int f = 0; f < futures.size(); f++) {
+        final Part part = futures.get(f).get();
+        hits[f + 1] = part.hits;
+        first.counts.add(part.counts);
+      }
+    } catch(final InterruptedException ex) {
+      throw new InterruptedIOException(ex.getMessage());
+    } catch(final ExecutionException ex) {
+      final Throwable cause = ex.getCause();
+      if(cause instanceof IOException) throw (IOException) cause;
+      if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException(cause);
+    } finally {
+      for(final Future<Part> future : futures) future.cancel(true);
+    }
+    return new DrillSidewaysResult(first.counts, size == 1 ? hits[0] : TopDocs.merge(null, n, hits));
+  }
+
+  /**
+   * Collects the hits and facet counts of the given segments.
+   * @param leaves segments
+   * @param weight weight of the query
+   * @param n maximum number of hits
+   * @param taxoReader taxonomy reader
+   * @param fconfig facets configuration
+   * @param sample number of sampled hits ({@code 0}: count all hits)
+   * @return hits and facet counts
+   * @throws IOException I/O exception
+   */
+  private Part collect(final List<AtomicReaderContext> leaves, final Weight weight, final int n,
+      final TaxonomyReader taxoReader, final FacetsConfig fconfig, final int sample)
+      throws IOException {
+    int docs = 0;
+    for(final AtomicReaderContext leaf : leaves) docs += leaf.reader().maxDoc();
+    final TopScoreDocCollector tdc = TopScoreDocCollector.create(Math.max(1, Math.min(n, docs)),
+        !weight.scoresDocsOutOfOrder());
+    // a fixed seed yields the same counts for repeated queries
+    final RandomSamplingFacetsCollector sfc = sample == 0 ? null :
+      new RandomSamplingFacetsCollector(sample, SEED);
+    final FacetsCollector fc = sfc != null ? sfc : new FacetsCollector();
+    search(leaves, weight, MultiCollector.wrap(tdc, fc));
+    final Counts counts = new Counts(taxoReader, fconfig, fc);
+    if(sfc != null) counts.scale(sfc.getSamplingRate());
+    return new Part(tdc.topDocs(), counts);
+  }
+
+  /**
+   * Groups the given segments into contiguous slices of similar size.
+   * @param leaves segments, in document order
+   * @return slices
+   */
+  private static List<List<AtomicReaderContext>> groups(final List<AtomicReaderContext> leaves) {
+    final List<List<AtomicReaderContext>> list = new ArrayList<>();
+    final int slices = Math.min(PARALLELISM, leaves.size());
+    if(POOL == null || slices < 2) {
+      list.add(leaves);
+      return list;
+    }
+
+    long total = 0;
+    for(final AtomicReaderContext leaf : leaves) total += leaf.reader().maxDoc();
+    List<AtomicReaderContext> group = new ArrayList<>();
+    long docs = 0;
+    for(int l = 0; l < leaves.size(); l++) {
+      final AtomicReaderContext leaf = leaves.get(l);
+      group.add(leaf);
+      docs += leaf.reader().maxDoc();
+      // close the slice if its share of documents is reached,
+      // or if each remaining segment must become a slice of its own
+      final int rest = leaves.size() - l - 1, open = slices - list.size() - 1;
+      if(rest > 0 && open > 0 && (docs * slices >= total * (list.size() + 1) || rest == open)) {
+        list.add(group);
+        group = new ArrayList<>();
+      }
+    }
+    list.add(group);
+    return list;
+  }
+
+  /**
+   * Hits and facet counts of a slice.
+   */
+  private static final class Part {
+    /**
+     * Hits.
+     */
+    final TopDocs hits;
+    /**
+     * Facet counts.
+     */
+    final Counts counts;
+
+    /**
+     * Constructor.
+     * @param hits hits
+     * @param counts facet counts
+     */
+    Part(final TopDocs hits, final Counts counts) {
+      this.hits = hits;
+      this.counts = counts;
+    }
+  }
+
+  /**
+   * Facet counts that can be summed up.
+   */
+  private static final class Counts extends FastTaxonomyFacetCounts {
+    /**
+     * Constructor.
+     * @param taxoReader taxonomy reader
+     * @param fconfig facets configuration
+     * @param fc facets collector
+     * @throws IOException I/O exception
+     */
+    Counts(final TaxonomyReader taxoReader, final FacetsConfig fconfig,
+        final FacetsCollector fc) throws IOException {
+      super(taxoReader, fconfig, fc);
+    }
+
+    /**
+     * Adds the given counts.
+     * @param counts counts
+     */
+    void add(final Counts counts) {
+      final int[] vals = counts.values;
+      for(int v = 0; v < vals.length; v++) values[v] += vals[v];
+    }
+
+    /**
+     * Scales the counts of sampled hits to the number of all hits.
+     * @param rate sampling rate ({@code 0} if all hits have been counted)
+     */
+    void scale(final double rate) {
+      // the rate is only set if the hits have actually been sampled
+      if(rate <= 0 || rate >= 1) return;
+      for(int v = 0; v < values.length; v++) values[v] = (int) Math.round(values[v] / rate);
+    }
+  }
+}
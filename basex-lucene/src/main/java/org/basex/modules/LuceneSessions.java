@@ -0,0 +1,117 @@
+package org.basex.modules;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Registry of all query sessions. Sessions that have not been accessed
+ * for a while are evicted, and the number of sessions is bounded.
+ * The limits can be set via the system properties
+ * {@code lucene.session.ttl} (idle time in seconds) and
+ * {@code lucene.session.max} (maximum number of sessions).
+ *
+ * @author Stephan
+ *
+ */
+public final class LuceneSessions {
+  /**
+   * Idle time after which a session is evicted (ms).
+   */
+  private static final long TTL = Long.getLong("lucene.session.ttl", 1800) * 1000;
+  /**
+   * Maximum number of sessions.
+   */
+  private static final int MAX = Math.max(1, Integer.getInteger("lucene.session.max", 1000));
+  /**
+   * Query sessions, indexed by their ID.
+   */
+  private static final ConcurrentHashMap<Integer, LuceneIndex> SESSIONS =
+      new ConcurrentHashMap<>();
+  /**
+   * Last assigned session ID.
+   */
+  private static final AtomicInteger ID = new AtomicInteger();
+
+  /**
+   * Private constructor.
+   */
+  private LuceneSessions() { }
+
+  /**
+   * Creates a new query session.
+   * @return session ID
+   */
+  public static int open() {
+    evict();
+    final int id = ID.incrementAndGet();
+    SESSIONS.put(id, new LuceneIndex());
+    return id;
+  }
+
+  /**
+   * Returns the query session with the given ID.
+   * @param id session ID
+   * @return session, or {@code null} if it does not exist or has been evicted
+   */
+  public static LuceneIndex get(final int id) {
+    final LuceneIndex session = SESSIONS.get(id);
+    if(session != null) session.touch();
+    return session;
+  }
+
+  /**
+   * Closes the query session with the given ID.
+   * @param id session ID
+   * @return {@code true} if the session existed
+   */
+  public static boolean close(final int id) {
+    return SESSIONS.remove(id) != null;
+  }
+
+  /**
+   * Returns the number of live sessions.
+   * @return number of sessions
+   */
+  public static int size() {
+    return SESSIONS.size();
+  }
+
+  /**
+   * Returns the estimated memory consumed by all live sessions.
+   * @return memory in bytes
+   */
+  public static long memory() {
+    long mem = 0;
+    for(final LuceneIndex session : SESSIONS.values()) mem += session.memory();
+    return mem;
+  }
+
+  /**
+   * Removes idle sessions. If the maximum number of sessions is still
+   * reached, the least recently accessed sessions are removed.
+   */
+  private static void evict() {
+    final long min = System.currentTimeMillis() - TTL;
+    for(final Map.Entry<Integer, LuceneIndex> entry : SESSIONS.entrySet()) {
+      if(entry.getValue().accessed() < min) SESSIONS.remove(entry.getKey(), entry.getValue());
+    }
+
+    final int over = SESSIONS.size() - MAX + 1;
+    if(over > 0) {
+      final ArrayList<Map.Entry<Integer, LuceneIndex>> entries =
+          new ArrayList<>(SESSIONS.entrySet());
+      final long[] accessed = new long[entries.size()];
+      for(int i = 0; i < accessed.length; i++) {
+        accessed[i] = entries.get(i).getValue().accessed();
+      }
+      final long[] sorted = accessed.clone();
+      Arrays.sort(sorted);
+      final long limit = sorted[Math.min(over, sorted.length) - 1];
+      int removed = 0;
+      for(int i = 0; i < accessed.length && removed < over; i++) {
+        if(accessed[i] <= limit && SESSIONS.remove(entries.get(i).getKey()) != null) removed++;
+      }
+    }
+  }
+}
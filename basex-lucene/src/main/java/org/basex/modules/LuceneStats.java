@@ -0,0 +1,307 @@
+package org.basex.modules;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+import org.basex.data.*;
+import org.basex.query.value.node.*;
+import org.basex.util.*;
+
+/**
+ * Cumulative counters and latency histograms of a database. The time of each
+ * query phase is recorded in a histogram with power-of-two buckets (in
+ * microseconds). The statistics are registered as JMX beans with the name
+ * {@code org.basex.modules:type=LuceneStats,name=<database>}.
+ *
+ * @author Stephan
+ *
+ */
+public final class LuceneStats implements LuceneStatsMBean {
+  /** Phase: parsing the query. */
+  static final int PARSE = 0;
+  /** Phase: acquiring or refreshing the index readers. */
+  static final int ACQUIRE = 1;
+  /** Phase: searching without facets. */
+  static final int SEARCH = 2;
+  /** Phase: searching with facet counts (drill sideways). */
+  static final int SIDEWAYS = 3;
+  /** Phase: building the facet trees. */
+  static final int FACETS = 4;
+  /** Phase: reading the node ids of the hits. */
+  static final int IDS = 5;
+  /** Phase: mapping node ids to pre values. */
+  static final int PRES = 6;
+  /** Phase: creating database nodes. */
+  static final int NODES = 7;
+  /**
+   * Names of the query phases.
+   */
+  static final String[] PHASES = { "parse", "acquire", "search", "drill-sideways",
+    "facets", "ids", "pres", "nodes" };
+  /**
+   * Number of histogram buckets.
+   */
+  private static final int BUCKETS = 32;
+  /**
+   * Statistics, indexed by database path.
+   */
+  private static final ConcurrentHashMap<String, LuceneStats> STATS = new ConcurrentHashMap<>();
+
+  /**
+   * Name of the database.
+   */
+  private final String name;
+  /**
+   * Number of queries.
+   */
+  private final AtomicLong queries = new AtomicLong();
+  /**
+   * Number of hits.
+   */
+  private final AtomicLong hits = new AtomicLong();
+  /**
+   * Number of cache hits.
+   */
+  private final AtomicLong cacheHits = new AtomicLong();
+  /**
+   * Number of cache misses.
+   */
+  private final AtomicLong cacheMisses = new AtomicLong();
+  /**
+   * Number of reader opens.
+   */
+  private final AtomicLong readerOpens = new AtomicLong();
+  /**
+   * Number of built documents.
+   */
+  private final AtomicLong builtDocs = new AtomicLong();
+  /**
+   * Build time (ms).
+   */
+  private final AtomicLong buildTime = new AtomicLong();
+  /**
+   * Number of measurements per phase.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(PHASES.length);
+  /**
+   * Total time per phase (ns).
+   */
+  private final AtomicLongArray totals = new AtomicLongArray(PHASES.length);
+  /**
+   * Histogram buckets of all phases.
+   */
+  private final AtomicLongArray histogram = new AtomicLongArray(PHASES.length * BUCKETS);
+
+  /**
+   * Constructor.
+   * @param name name of the database
+   */
+  private LuceneStats(final String name) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the statistics of the given database.
+   * @param data database data
+   * @return statistics
+   */
+  static LuceneStats get(final Data data) {
+    return get(data.meta.name, data.meta.path.toString());
+  }
+
+  /**
+   * Returns the statistics of the database with the given name and path.
+   * @param name database name
+   * @param path database path
+   * @return statistics
+   */
+  static LuceneStats get(final String name, final String path) {
+    LuceneStats stats = STATS.get(path);
+    if(stats == null) {
+      stats = new LuceneStats(name);
+      final LuceneStats old = STATS.putIfAbsent(path, stats);
+      if(old != null) return old;
+      stats.register();
+    }
+    return stats;
+  }
+
+  /**
+   * Returns the statistics of all databases.
+   * @return statistics element
+   */
+  static FElem all() {
+    final FElem elem = new FElem("stats");
+    final TreeMap<String, LuceneStats> sorted = new TreeMap<>();
+    for(final LuceneStats stats : STATS.values()) sorted.put(stats.name, stats);
+    for(final LuceneStats stats : sorted.values()) elem.add(stats.toXML());
+    return elem;
+  }
+
+  /**
+   * Registers this bean.
+   */
+  private void register() {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName on = new ObjectName("org.basex.modules:type=LuceneStats,name=" +
+          ObjectName.quote(name));
+      if(server.isRegistered(on)) server.unregisterMBean(on);
+      server.registerMBean(this, on);
+    } catch(final JMException | SecurityException ex) {
+      Util.debug(ex);
+    }
+  }
+
+  /**
+   * Records the time of a query phase.
+   * @param phase phase
+   * @param nanos time (ns)
+   */
+  void time(final int phase, final long nanos) {
+    counts.incrementAndGet(phase);
+    totals.addAndGet(phase, nanos);
+    final long us = nanos / 1000;
+    final int b = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us));
+    histogram.incrementAndGet(phase * BUCKETS + b);
+  }
+
+  /**
+   * Records an evaluated query.
+   * @param count number of returned hits
+   */
+  void query(final long count) {
+    queries.incrementAndGet();
+    hits.addAndGet(count);
+  }
+
+  /**
+   * Records a cache lookup.
+   * @param hit cache hit
+   */
+  void cache(final boolean hit) {
+    (hit ? cacheHits : cacheMisses).incrementAndGet();
+  }
+
+  /**
+   * Records an opened or refreshed reader.
+   */
+  void readerOpened() {
+    readerOpens.incrementAndGet();
+  }
+
+  /**
+   * Records an index build or update.
+   * @param docs number of added documents
+   * @param ms time (ms)
+   */
+  void built(final long docs, final long ms) {
+    builtDocs.addAndGet(docs);
+    buildTime.addAndGet(ms);
+  }
+
+  /**
+   * Returns the statistics as XML.
+   * @return database element
+   */
+  FElem toXML() {
+    final FElem elem = new FElem("database").add("name", name).
+        add("queries", Long.toString(getQueries())).
+        add("hits", Long.toString(getHits())).
+        add("cache-hits", Long.toString(getCacheHits())).
+        add("cache-misses", Long.toString(getCacheMisses())).
+        add("reader-opens", Long.toString(getReaderOpens())).
+        add("built-docs", Long.toString(getBuiltDocs())).
+        add("build-docs-per-sec", Long.toString(getBuildDocsPerSecond()));
+    for(int p = 0; p < PHASES.length; p++) {
+      final long count = counts.get(p);
+      if(count == 0) continue;
+      final FElem phase = new FElem("phase").add("name", PHASES[p]).
+          add("count", Long.toString(count)).
+          add("total-ms", ms(totals.get(p))).
+          add("mean-ms", ms(totals.get(p) / count));
+      for(int b = 0; b < BUCKETS; b++) {
+        final long c = histogram.get(p * BUCKETS + b);
+        if(c != 0) phase.add(new FElem("bucket").add("max-us", Long.toString(1L << b)).
+            add("count", Long.toString(c)));
+      }
+      elem.add(phase);
+    }
+    return elem;
+  }
+
+  /**
+   * Formats a time in milliseconds.
+   * @param nanos time (ns)
+   * @return formatted time
+   */
+  static String ms(final long nanos) {
+    return String.format(Locale.ENGLISH, "%.3f", nanos / 1e6);
+  }
+
+  @Override
+  public String getDatabase() {
+    return name;
+  }
+
+  @Override
+  public long getQueries() {
+    return queries.get();
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  @Override
+  public long getCacheMisses() {
+    return cacheMisses.get();
+  }
+
+  @Override
+  public long getReaderOpens() {
+    return readerOpens.get();
+  }
+
+  @Override
+  public long getBuiltDocs() {
+    return builtDocs.get();
+  }
+
+  @Override
+  public long getBuildDocsPerSecond() {
+    return builtDocs.get() * 1000 / Math.max(1, buildTime.get());
+  }
+
+  @Override
+  public String[] getPhaseNames() {
+    return PHASES.clone();
+  }
+
+  @Override
+  public long[] getPhaseCounts() {
+    final long[] c = new long[PHASES.length];
+    for(int p = 0; p < c.length; p++) c[p] = counts.get(p);
+    return c;
+  }
+
+  @Override
+  public double[] getPhaseMeanMillis() {
+    final double[] m = new double[PHASES.length];
+    for(int p = 0; p < m.length; p++) {
+      final long c = counts.get(p);
+      m[p] = c == 0 ? 0 : totals.get(p) / 1e6 / c;
+    }
+    return m;
+  }
+}
@@ -0,0 +1,75 @@
+package org.basex.modules;
+
+/**
+ * JMX interface of the statistics of a database.
+ *
+ * @author Stephan
+ *
+ */
+public interface LuceneStatsMBean {
+  /**
+   * Returns the name of the database.
+   * @return name
+   */
+  String getDatabase();
+
+  /**
+   * Returns the number of evaluated queries.
+   * @return number of queries
+   */
+  long getQueries();
+
+  /**
+   * Returns the number of returned hits.
+   * @return number of hits
+   */
+  long getHits();
+
+  /**
+   * Returns the number of results taken from the cache.
+   * @return number of cache hits
+   */
+  long getCacheHits();
+
+  /**
+   * Returns the number of results not found in the cache.
+   * @return number of cache misses
+   */
+  long getCacheMisses();
+
+  /**
+   * Returns the number of opened or refreshed index readers.
+   * @return number of reader opens
+   */
+  long getReaderOpens();
+
+  /**
+   * Returns the number of documents added by index builds and updates.
+   * @return number of documents
+   */
+  long getBuiltDocs();
+
+  /**
+   * Returns the average build throughput.
+   * @return documents per second
+   */
+  long getBuildDocsPerSecond();
+
+  /**
+   * Returns the names of the measured query phases.
+   * @return phase names
+   */
+  String[] getPhaseNames();
+
+  /**
+   * Returns the number of measurements per query phase.
+   * @return counts
+   */
+  long[] getPhaseCounts();
+
+  /**
+   * Returns the mean time per query phase.
+   * @return times in ms
+   */
+  double[] getPhaseMeanMillis();
+}
@@ -0,0 +1,224 @@
+package org.basex.modules;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.facet.*;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager.SearcherAndTaxonomy;
+import org.apache.lucene.index.*;
+import org.apache.lucene.queryparser.classic.*;
+import org.apache.lucene.search.*;
+import org.basex.core.*;
+import org.basex.query.value.node.*;
+import org.basex.util.*;
+
+/**
+ * Warms up the indexes of databases, so that the first searches do not pay
+ * for cold caches. The index and taxonomy files are read once to load them
+ * into the page cache of the operating system, the readers are opened, the
+ * node ids and the facet counts are touched, and recorded queries are parsed
+ * and evaluated. The databases are not opened by BaseX.
+ *
+ * When the module is loaded, the databases in the system property
+ * {@code lucene.warmup.databases} (comma-separated) are warmed up in the
+ * background. The property {@code lucene.warmup.queries} may point to a file
+ * with one query per line; empty lines and lines starting with {@code #} are
+ * ignored.
+ *
+ * @author Stephan
+ *
+ */
+final class LuceneWarmup {
+  /**
+   * Databases that are warmed up when the module is loaded.
+   */
+  private static final String DATABASES = System.getProperty("lucene.warmup.databases", "");
+  /**
+   * File with the queries that are evaluated when the module is loaded.
+   */
+  private static final String QUERIES = System.getProperty("lucene.warmup.queries", "");
+  /**
+   * Number of hits requested by the recorded queries.
+   */
+  private static final int HITS = 10;
+  /**
+   * Report of the last warm-up ({@code null} if no warm-up has been run).
+   */
+  private static volatile FElem last;
+
+  /** Private constructor. */
+  private LuceneWarmup() { }
+
+  /**
+   * Starts the configured warm-up in the background. Does nothing if no
+   * databases have been configured.
+   */
+  static void start() {
+    final String[] names = names(DATABASES);
+    if(names.length == 0) return;
+
+    final Thread thread = new Thread("lucene-warmup") {
+      @Override
+      public void run() {
+        final Context context = new Context();
+        try {
+          LuceneWarmup.run(context, names, queries());
+        } catch(final IOException ex) {
+          Util.errln("Lucene warm-up: %", ex);
+        } finally {
+          context.close();
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns the report of the last warm-up.
+   * @return warmup element, or {@code null}
+   */
+  static FElem last() {
+    return last;
+  }
+
+  /**
+   * Warms up the indexes of the given databases.
+   * @param context database context
+   * @param names database names
+   * @param queries queries to evaluate on each database
+   * @return warmup element
+   */
+  static FElem run(final Context context, final String[] names, final String[] queries) {
+    final long start = System.nanoTime();
+    final FElem report = new FElem("warmup");
+    for(final String name : names) {
+      report.add(database(name, context.globalopts.dbpath(name).toString(), queries));
+    }
+    final long ms = (System.nanoTime() - start) / 1000000;
+    report.add("ms", Long.toString(ms));
+    Util.errln("Lucene warm-up: % database(s) in % ms.", names.length, ms);
+    last = report;
+    return report;
+  }
+
+  /**
+   * Warms up the index of a single database.
+   * @param name database name
+   * @param path database path
+   * @param queries queries to evaluate
+   * @return database element
+   */
+  private static FElem database(final String name, final String path, final String[] queries) {
+    final long start = System.nanoTime();
+    final FElem elem = new FElem("database").add("name", name);
+    long bytes = 0;
+    int files = 0, evaluated = 0, failed = 0;
+    try {
+      if(!LuceneDirectory.index(path).exists()) {
+        throw new FileNotFoundException("No Lucene index found: " + name);
+      }
+      // resident directories are loaded into memory by the readers anyway
+      if(!LuceneDirectory.resident(name)) {
+        for(final File dir : new File[] { LuceneDirectory.index(path),
+            LuceneDirectory.taxonomy(path) }) {
+          final File[] list = dir.listFiles();
+          if(list == null) continue;
+          for(final File file : list) {
+            bytes += read(file);
+            files++;
+          }
+        }
+      }
+
+      final SearcherAndTaxonomy st = LuceneReaders.acquire(name, path);
+      try {
+        touch(st.searcher.getIndexReader());
+        final LuceneSearcher searcher = (LuceneSearcher) st.searcher;
+        final FacetsConfig fconfig = LuceneIndex.facetsConfig(st);
+        searcher.searchFacets(new MatchAllDocsQuery(), 1, st.taxonomyReader, fconfig, 0).
+          facets.getAllDims(1);
+        for(final String query : queries) {
+          try {
+            searcher.searchFacets(LuceneIndex.parse(query), HITS, st.taxonomyReader, fconfig, 0);
+            evaluated++;
+          } catch(final ParseException ex) {
+            // invalid queries are skipped
+            Util.debug(ex);
+            failed++;
+          }
+        }
+      } finally {
+        LuceneReaders.release(st);
+      }
+    } catch(final IOException | RuntimeException ex) {
+      Util.debug(ex);
+      elem.add("error", ex.getMessage() != null ? ex.getMessage() : ex.toString());
+    }
+    return elem.add("ms", Long.toString((System.nanoTime() - start) / 1000000)).
+        add("files", Integer.toString(files)).add("bytes", Long.toString(bytes)).
+        add("queries", Integer.toString(evaluated)).add("failed", Integer.toString(failed));
+  }
+
+  /**
+   * Reads the node ids of all documents.
+   * @param reader index reader
+   * @throws IOException I/O exception
+   */
+  private static void touch(final IndexReader reader) throws IOException {
+    for(final AtomicReaderContext leaf : reader.leaves()) {
+      final NumericDocValues ids = leaf.reader().getNumericDocValues("pre");
+      if(ids == null) continue;
+      final int max = leaf.reader().maxDoc();
+      for(int doc = 0; doc < max; doc++) ids.get(doc);
+    }
+  }
+
+  /**
+   * Reads a file completely.
+   * @param file file
+   * @return number of read bytes
+   * @throws IOException I/O exception
+   */
+  private static long read(final File file) throws IOException {
+    if(!file.isFile()) return 0;
+    long bytes = 0;
+    final byte[] buffer = new byte[1 << 16];
+    try(final InputStream in = new FileInputStream(file)) {
+      for(int r; (r = in.read(buffer)) != -1;) bytes += r;
+    }
+    return bytes;
+  }
+
+  /**
+   * Splits a comma-separated list of database names.
+   * @param list list
+   * @return names
+   */
+  private static String[] names(final String list) {
+    final ArrayList<String> names = new ArrayList<>();
+    for(final String name : list.split(",")) {
+      if(!name.trim().isEmpty()) names.add(name.trim());
+    }
+    return names.toArray(new String[names.size()]);
+  }
+
+  /**
+   * Reads the configured queries.
+   * @return queries
+   * @throws IOException I/O exception
+   */
+  private static String[] queries() throws IOException {
+    final ArrayList<String> queries = new ArrayList<>();
+    if(!QUERIES.isEmpty()) {
+      try(final BufferedReader br = new BufferedReader(new InputStreamReader(
+          new FileInputStream(QUERIES), "UTF-8"))) {
+        for(String line; (line = br.readLine()) != null;) {
+          final String query = line.trim();
+          if(!query.isEmpty() && !query.startsWith("#")) queries.add(query);
+        }
+      }
+    }
+    return queries.toArray(new String[queries.size()]);
+  }
+}
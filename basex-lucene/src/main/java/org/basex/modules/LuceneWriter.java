@@ -0,0 +1,326 @@
+package org.basex.modules;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.analysis.standard.*;
+import org.apache.lucene.facet.taxonomy.directory.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.index.IndexWriterConfig.*;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.Version;
+import org.basex.data.*;
+import org.basex.query.value.node.*;
+import org.basex.util.*;
+
+/**
+ * Long-lived index and taxonomy writer of a database, shared by all
+ * updates and merges. Forced merges run in the background: the calling
+ * thread only schedules them, and their status can be requested while
+ * they are running. Merges are throttled according to the
+ * {@link LuceneOptions} the writer has been opened or configured with.
+ *
+ * @author Stephan
+ *
+ */
+public final class LuceneWriter {
+  /**
+   * Writers, indexed by database path.
+   */
+  private static final ConcurrentHashMap<String, LuceneWriter> WRITERS =
+      new ConcurrentHashMap<>();
+  /**
+   * Threads running forced merges.
+   */
+  private static final ExecutorService MERGERS = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          final Thread thread = new Thread(r, "lucene-optimize");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        closeAll();
+      }
+    });
+  }
+
+  /**
+   * Index writer.
+   */
+  final IndexWriter writer;
+  /**
+   * Taxonomy writer.
+   */
+  final DirectoryTaxonomyWriter taxoWriter;
+  /**
+   * Options the writer has been opened or configured with.
+   */
+  volatile LuceneOptions options;
+  /**
+   * Rate limiter of merges.
+   */
+  private final RateLimitedDirectoryWrapper limiter;
+  /**
+   * Name of the database.
+   */
+  private final String name;
+  /**
+   * Indicates if the writers have been closed.
+   */
+  private volatile boolean closed;
+  /**
+   * State of the last forced merge ({@code idle}, {@code running}, {@code done},
+   * {@code failed} or {@code aborted}).
+   */
+  private volatile String state = "idle";
+  /**
+   * Maximum number of segments of the last forced merge.
+   */
+  private volatile int target;
+  /**
+   * Number of segments before the last forced merge.
+   */
+  private volatile int before;
+  /**
+   * Start time of the last forced merge (ms).
+   */
+  private volatile long started;
+  /**
+   * End time of the last forced merge (ms).
+   */
+  private volatile long finished;
+  /**
+   * Error of the last forced merge.
+   */
+  private volatile String error;
+
+  /**
+   * Constructor.
+   * @param name name of the database
+   * @param writer index writer
+   * @param taxoWriter taxonomy writer
+   * @param options options
+   * @param limiter rate limiter of merges
+   */
+  private LuceneWriter(final String name, final IndexWriter writer,
+      final DirectoryTaxonomyWriter taxoWriter, final LuceneOptions options,
+      final RateLimitedDirectoryWrapper limiter) {
+    this.name = name;
+    this.writer = writer;
+    this.taxoWriter = taxoWriter;
+    this.options = options;
+    this.limiter = limiter;
+  }
+
+  /**
+   * Returns the writer of the given database, opening it with the default options
+   * if required.
+   * @param data database data
+   * @return writer
+   * @throws IOException I/O exception
+   */
+  public static LuceneWriter get(final Data data) throws IOException {
+    final LuceneWriter lw = WRITERS.get(data.meta.path.toString());
+    return lw != null ? lw : get(data, null);
+  }
+
+  /**
+   * Returns the writer of the given database. If options are specified, the
+   * merge options and the RAM buffer of an open writer are changed in place,
+   * as the writer may be used by other threads at the same time.
+   * @param data database data
+   * @param options options (may be {@code null})
+   * @return writer
+   * @throws IOException I/O exception
+   */
+  public static synchronized LuceneWriter get(final Data data, final LuceneOptions options)
+      throws IOException {
+    final String path = data.meta.path.toString();
+    final File indexFile = LuceneDirectory.index(path);
+    if(!indexFile.exists()) {
+      // database has been dropped, or no index exists
+      close(path);
+      throw new FileNotFoundException("No Lucene index found: " + indexFile);
+    }
+
+    LuceneWriter lw = WRITERS.get(path);
+    if(lw != null) {
+      if(options != null) lw.configure(options);
+    } else {
+      final LuceneOptions opts = options != null ? options : new LuceneOptions();
+      final RateLimitedDirectoryWrapper index = new RateLimitedDirectoryWrapper(
+          LuceneDirectory.open(data, false, true));
+      limit(index, opts);
+      final IndexWriter writer = new IndexWriter(index, opts.config(
+          new StandardAnalyzer(Version.LUCENE_4_9)).setOpenMode(OpenMode.APPEND));
+      final DirectoryTaxonomyWriter taxoWriter;
+      try {
+        taxoWriter = new DirectoryTaxonomyWriter(LuceneDirectory.open(data, true, true),
+            OpenMode.APPEND);
+      } catch(final IOException ex) {
+        writer.close();
+        throw ex;
+      }
+      lw = new LuceneWriter(data.meta.name, writer, taxoWriter, opts, index);
+      WRITERS.put(path, lw);
+    }
+    return lw;
+  }
+
+  /**
+   * Changes the settings of the open writer that can be changed in place.
+   * @param opts options
+   */
+  private synchronized void configure(final LuceneOptions opts) {
+    final LiveIndexWriterConfig config = writer.getConfig();
+    config.setRAMBufferSizeMB(opts.ram);
+    final MergePolicy mp = config.getMergePolicy();
+    final MergeScheduler ms = config.getMergeScheduler();
+    if(mp instanceof TieredMergePolicy && ms instanceof ConcurrentMergeScheduler) {
+      opts.merges((TieredMergePolicy) mp, (ConcurrentMergeScheduler) ms);
+    }
+    limit(limiter, opts);
+    options = opts;
+  }
+
+  /**
+   * Sets the maximum write rate of merges.
+   * @param limiter rate limiter
+   * @param opts options
+   */
+  private static void limit(final RateLimitedDirectoryWrapper limiter, final LuceneOptions opts) {
+    limiter.setMaxWriteMBPerSec(opts.mergerate > 0 ? opts.mergerate : null,
+        IOContext.Context.MERGE);
+  }
+
+  /**
+   * Closes the writer of the database with the given path.
+   * A running forced merge is aborted.
+   * @param path database path
+   * @throws IOException I/O exception
+   */
+  public static void close(final String path) throws IOException {
+    final LuceneWriter lw = WRITERS.remove(path);
+    if(lw != null) lw.close();
+  }
+
+  /**
+   * Closes the writers of all databases.
+   */
+  public static void closeAll() {
+    for(final String path : WRITERS.keySet()) {
+      try {
+        close(path);
+      } catch(final IOException ex) {
+        Util.debug(ex);
+      }
+    }
+  }
+
+  /**
+   * Starts a forced merge in the background.
+   * @param segments maximum number of segments
+   * @return {@code false} if a forced merge is already running
+   */
+  public synchronized boolean optimize(final int segments) {
+    if(running()) return false;
+    target = Math.max(1, segments);
+    before = segments();
+    started = System.currentTimeMillis();
+    finished = 0;
+    error = null;
+    state = "running";
+
+    MERGERS.execute(new Runnable() {
+      @Override
+      public void run() {
+        String st = "done";
+        try {
+          writer.forceMerge(target);
+          writer.commit();
+        } catch(final AlreadyClosedException ex) {
+          st = "aborted";
+        } catch(final IOException | RuntimeException ex) {
+          st = closed ? "aborted" : "failed";
+          error = ex.toString();
+        } finally {
+          finished = System.currentTimeMillis();
+          state = st;
+        }
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Returns the status of the last forced merge.
+   * @return optimize element
+   */
+  public FElem status() {
+    final long s = started, f = finished;
+    final FElem elem = new FElem("optimize").add("database", name).add("state", state).
+        add("segments", Integer.toString(segments())).
+        add("merging", Integer.toString(merging()));
+    if(s != 0) {
+      elem.add("target", Integer.toString(target)).add("before", Integer.toString(before)).
+        add("elapsed-ms", Long.toString((f != 0 ? f : System.currentTimeMillis()) - s));
+    }
+    final String e = error;
+    if(e != null) elem.add("error", e);
+    return elem;
+  }
+
+  /**
+   * Checks if a forced merge is running.
+   * @return result of check
+   */
+  private boolean running() {
+    return state.equals("running");
+  }
+
+  /**
+   * Returns the number of committed segments.
+   * @return number of segments, or {@code -1} if they cannot be read
+   */
+  private int segments() {
+    try {
+      final SegmentInfos infos = new SegmentInfos();
+      infos.read(writer.getDirectory());
+      return infos.size();
+    } catch(final IOException | AlreadyClosedException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the number of segments that are currently merged.
+   * @return number of segments
+   */
+  private int merging() {
+    try {
+      return writer.getMergingSegments().size();
+    } catch(final AlreadyClosedException ex) {
+      return 0;
+    }
+  }
+
+  /**
+   * Closes the writers without waiting for running merges.
+   * @throws IOException I/O exception
+   */
+  private void close() throws IOException {
+    closed = true;
+    try {
+      writer.close(false);
+    } finally {
+      taxoWriter.close();
+    }
+  }
+}